@@ -0,0 +1,140 @@
+package net.thegreshams.firebase4j.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.CompactJsonTree;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+
+/**
+ * Compares the memory-footprint and path-lookup speed of a response-body held as a map (the default) against
+ * the same body held as a {@link CompactJsonTree}.
+ *
+ * Program-arguments (all optional): 'children=N' (default 100000), 'copies=N' bodies held at once (default 5),
+ * 'lookups=N' (default 1000000).
+ */
+public class CompactJsonTreeBenchmark {
+
+
+	public static void main(String[] args) throws JacksonUtilityException {
+
+		int children = 100000;
+		int copies = 5;
+		int lookups = 1000000;
+		for( String s : args ) {
+
+			if( s == null || s.trim().isEmpty() ) continue;
+			String[] split = s.trim().split( "=" );
+
+			if( split[0].equals("children") ) {
+				children = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("copies") ) {
+				copies = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("lookups") ) {
+				lookups = Integer.parseInt( split[1] );
+			}
+		}
+
+		String json = CompactJsonTreeBenchmark.buildJson( children );
+		System.out.println( "JSON size: " + json.length() + " chars, " + children + " children" );
+
+
+		// memory: hold several copies of each representation and measure the heap they retain
+		List<Object> held = new ArrayList<Object>();
+		long before = CompactJsonTreeBenchmark.usedHeap();
+		for( int i = 0; i < copies; i++ ) {
+			held.add( JacksonUtility.GET_JSON_STRING_AS_MAP( json ) );
+		}
+		long mapBytes = (CompactJsonTreeBenchmark.usedHeap() - before) / copies;
+		held.clear();
+
+		before = CompactJsonTreeBenchmark.usedHeap();
+		for( int i = 0; i < copies; i++ ) {
+			held.add( JacksonUtility.GET_JSON_STRING_AS_COMPACT_TREE( json ) );
+		}
+		long treeBytes = (CompactJsonTreeBenchmark.usedHeap() - before) / copies;
+
+		System.out.println( "\nMemory per body:" );
+		System.out.println( "  map:          " + mapBytes / 1024 + " KB (" + (mapBytes * 100 / json.length()) / 100.0 + "x JSON size)" );
+		System.out.println( "  compact tree: " + treeBytes / 1024 + " KB (" + (treeBytes * 100 / json.length()) / 100.0 + "x JSON size)" );
+
+
+		// lookups: the same random paths against each representation
+		Map<String, Object> map = JacksonUtility.GET_JSON_STRING_AS_MAP( json );
+		CompactJsonTree tree = (CompactJsonTree) held.get( 0 );
+		String[] keys = new String[lookups];
+		String[] paths = new String[lookups];
+		Random random = new Random( 42 );
+		for( int i = 0; i < lookups; i++ ) {
+			keys[i] = CompactJsonTreeBenchmark.keyOf( random.nextInt(children) );
+			paths[i] = keys[i] + "/stats/score";
+		}
+
+		long sum = 0;
+		long start = System.nanoTime();
+		for( int pass = 0; pass < 2; pass++ ) { // first pass warms up
+			start = System.nanoTime();
+			for( String key : keys ) {
+				sum += CompactJsonTreeBenchmark.scoreFromMap( map, key );
+			}
+		}
+		long mapNanos = System.nanoTime() - start;
+
+		for( int pass = 0; pass < 2; pass++ ) {
+			start = System.nanoTime();
+			for( String path : paths ) {
+				sum += tree.getLong( path, 0 );
+			}
+		}
+		long treeNanos = System.nanoTime() - start;
+
+		System.out.println( "\nLookup of '<child>/stats/score':" );
+		System.out.println( "  map:          " + mapNanos / lookups + " ns/lookup" );
+		System.out.println( "  compact tree: " + treeNanos / lookups + " ns/lookup" );
+		System.out.println( "\n(checksum " + sum + ")" );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static long scoreFromMap( Map<String, Object> map, String key ) {
+
+		Map<String, Object> child = (Map<String, Object>) map.get( key );
+		Map<String, Object> stats = (Map<String, Object>) child.get( "stats" );
+		return ((Number) stats.get( "score" )).longValue();
+	}
+
+	private static String buildJson( int children ) {
+
+		Random random = new Random( 7 );
+		StringBuilder result = new StringBuilder( "{" );
+		for( int i = 0; i < children; i++ ) {
+			if( i > 0 ) result.append( ',' );
+			result.append( '"' ).append( CompactJsonTreeBenchmark.keyOf(i) ).append( "\":{" )
+					.append( "\"name\":\"user " ).append( i ).append( "\"," )
+					.append( "\"active\":" ).append( random.nextBoolean() ).append( ',' )
+					.append( "\"stats\":{\"score\":" ).append( random.nextInt(100000) )
+					.append( ",\"ratio\":" ).append( random.nextDouble() )
+					.append( ",\"visits\":" ).append( random.nextInt(1000) ).append( "}}" );
+		}
+		return result.append( '}' ).toString();
+	}
+
+	private static String keyOf( int i ) {
+		return "u" + (1000000 + i);
+	}
+
+	private static long usedHeap() {
+
+		Runtime runtime = Runtime.getRuntime();
+		for( int i = 0; i < 3; i++ ) {
+			System.gc();
+			try { Thread.sleep( 100 ); } catch( InterruptedException e ) { Thread.currentThread().interrupt(); }
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,123 @@
+package net.thegreshams.firebase4j.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thegreshams.firebase4j.emulator.FirebaseEmulator;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Measures request throughput of one shared {@link Firebase} against an in-process {@link FirebaseEmulator},
+ * so client changes can be benchmarked without a live database.
+ *
+ * Program-arguments (all optional): 'threads=N' (default 16), 'seconds=N' (default 10), 'children=N' keys
+ * read and written (default 1000), 'reads=N' percent of requests that are reads (default 80), 'latency=N'
+ * milliseconds added to every response (default 0).
+ */
+public class EmulatorBenchmark {
+
+
+	public static void main(String[] args) throws FirebaseException, JacksonUtilityException, InterruptedException {
+
+		int threads = 16;
+		int seconds = 10;
+		int children = 1000;
+		int reads = 80;
+		int latency = 0;
+		for( String s : args ) {
+
+			if( s == null || s.trim().isEmpty() ) continue;
+			String[] split = s.trim().split( "=" );
+
+			if( split[0].equals("threads") ) {
+				threads = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("seconds") ) {
+				seconds = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("children") ) {
+				children = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("reads") ) {
+				reads = Integer.parseInt( split[1] );
+			}
+			else if( split[0].equals("latency") ) {
+				latency = Integer.parseInt( split[1] );
+			}
+		}
+
+		// the per-request logging would otherwise dominate
+		Logger.getRootLogger().setLevel( Level.WARN );
+
+		FirebaseEmulator emulator = new FirebaseEmulator().setNoDelay( true ).start().setLatency( latency, latency );
+		for( int i = 0; i < children; i++ ) {
+			emulator.setValue( "items/" + i, JacksonUtility.GET_JSON_STRING_AS_MAP(EmulatorBenchmark.buildJson(i)) );
+		}
+		final Firebase firebase = new Firebase( emulator.getBaseUrl() );
+
+		System.out.println( "Emulator @ " + emulator.getBaseUrl() + ": " + threads + " threads, " + seconds + "s, "
+				+ children + " children, " + reads + "% reads, " + latency + "ms latency" );
+
+
+		// run the mix of reads and writes on every thread until the deadline
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final int childCount = children;
+		final int readPercent = reads;
+		List<Thread> workers = new ArrayList<Thread>();
+		for( int t = 0; t < threads; t++ ) {
+
+			final Random random = new Random( t );
+			Thread worker = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					while( System.nanoTime() < deadline ) {
+						int child = random.nextInt( childCount );
+						long start = System.nanoTime();
+						try {
+							FirebaseResponse response = random.nextInt( 100 ) < readPercent
+									? firebase.get( "items/" + child )
+									: firebase.put( "items/" + child, EmulatorBenchmark.buildJson(child) );
+							if( !response.getSuccess() ) {
+								failures.incrementAndGet();
+							}
+						} catch( Throwable e ) {
+							failures.incrementAndGet();
+						}
+						nanos.addAndGet( System.nanoTime() - start );
+						requests.incrementAndGet();
+					}
+				}
+			});
+			workers.add( worker );
+			worker.start();
+		}
+		for( Thread worker : workers ) {
+			worker.join();
+		}
+
+		long total = requests.get();
+		System.out.println( "\nRequests:   " + total + " (" + failures.get() + " failed)" );
+		System.out.println( "Throughput: " + total / seconds + " requests/s" );
+		System.out.println( "Latency:    " + (total > 0 ? nanos.get() / total / 1000 : 0) + " us/request (mean)" );
+
+		firebase.close();
+		emulator.stop();
+	}
+
+	private static String buildJson( int i ) {
+		return "{\"name\":\"item " + i + "\",\"score\":" + (i * 7 % 1000) + ",\"tags\":{\"a\":true,\"b\":false}}";
+	}
+
+}
@@ -0,0 +1,1099 @@
+package net.thegreshams.firebase4j.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process emulator of the Realtime Database REST API, for tests and offline benchmarks; point a
+ * {@link net.thegreshams.firebase4j.service.Firebase} at {@link #getBaseUrl()}.
+ *
+ * Supported: GET/PUT/PATCH (including multi-path)/POST/DELETE on '.json' paths; orderBy ("$key", "$value",
+ * or a child-path) with startAt/endAt/equalTo/limitToFirst/limitToLast; shallow; print=silent; ETags
+ * (X-Firebase-ETag) with conditional PUT/DELETE (if-match, answered 412 with the current data); streaming
+ * (Accept: text/event-stream) with put/patch/keep-alive events; and, optionally, a required auth-token.
+ * Latency and failures can be injected to exercise retry and backoff.
+ *
+ * Not emulated: security rules, priorities, arrays (they are stored and returned as objects keyed by
+ * index), and server-values other than timestamp and increment.
+ *
+ * The data is one in-memory tree guarded by a read-write lock, so reads proceed in parallel.
+ */
+public class FirebaseEmulator {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	public static final long				KEEP_ALIVE_MILLIS		= 30000;
+
+	private static final ObjectMapper		MAPPER					= new ObjectMapper();
+
+	private static final String				EVENT_STREAM			= "text/event-stream";
+
+	/* order of keys under orderBy="$key": 32-bit integer keys numerically, then the rest as strings */
+	private static final Comparator<String>	KEY_ORDER				= new Comparator<String>() {
+		@Override
+		public int compare( String a, String b ) {
+			Integer ia = FirebaseEmulator.parseIntKey( a );
+			Integer ib = FirebaseEmulator.parseIntKey( b );
+			if( ia != null && ib != null ) {
+				return ia.compareTo( ib );
+			}
+			if( ia != null || ib != null ) {
+				return ia != null ? -1 : 1;
+			}
+			return a.compareTo( b );
+		}
+	};
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final int requestedPort;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/* guarded by lock */
+	private Object root = null;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final Random random = new Random();
+
+	private volatile boolean noDelay = false;
+	private volatile String authToken = null;
+	private volatile long minLatencyMillis = 0;
+	private volatile long maxLatencyMillis = 0;
+	private volatile double failureRate = 0;
+	private volatile int failureCode = 503;
+	private final AtomicInteger failNextCount = new AtomicInteger();
+	private volatile int failNextCode = 503;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedFailures = new AtomicLong();
+
+	/**
+	 * An emulator on an ephemeral port.
+	 */
+	public FirebaseEmulator() {
+		this( 0 );
+	}
+
+	/**
+	 * @param port -- if 0, an ephemeral port is chosen on {@link #start()}
+	 */
+	public FirebaseEmulator( int port ) {
+		this.requestedPort = port;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Starts serving on localhost.
+	 *
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 * @throws {@link FirebaseException} if already started, or the port could not be bound
+	 */
+	public synchronized FirebaseEmulator start() throws FirebaseException {
+
+		if( this.server != null ) {
+			String msg = "emulator already started on port " + this.getPort();
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		if( this.noDelay && System.getProperty( "sun.net.httpserver.nodelay" ) == null ) {
+			System.setProperty( "sun.net.httpserver.nodelay", "true" );
+		}
+
+		try {
+
+			this.server = HttpServer.create( new InetSocketAddress("localhost", this.requestedPort), 1024 );
+
+		} catch( IOException e ) {
+
+			String msg = "unable to bind emulator to port " + this.requestedPort;
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+
+		}
+
+		// unbounded, since every open stream holds a thread
+		this.executor = Executors.newCachedThreadPool( new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread result = new Thread( r, "firebase4j-emulator-" + this.count.incrementAndGet() );
+				result.setDaemon( true );
+				return result;
+			}
+		});
+		this.server.setExecutor( this.executor );
+		this.server.createContext( "/", new HttpHandler() {
+			@Override
+			public void handle( HttpExchange exchange ) throws IOException {
+				FirebaseEmulator.this.handle( exchange );
+			}
+		});
+		this.server.start();
+
+		LOGGER.info( "started emulator @ " + this.getBaseUrl() );
+		return this;
+	}
+
+	/**
+	 * Stops serving and closes any open streams; the data is kept.
+	 */
+	public synchronized void stop() {
+
+		if( this.server == null ) {
+			return;
+		}
+		for( Listener listener : this.listeners ) {
+			listener.close();
+		}
+		this.server.stop( 0 );
+		this.executor.shutdownNow();
+		this.server = null;
+		LOGGER.info( "stopped emulator" );
+	}
+
+	/**
+	 * Returns the port being served.
+	 *
+	 * @return the port, or -1 if not started
+	 */
+	public synchronized int getPort() {
+		return this.server == null ? -1 : this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the base-url to construct a Firebase with.
+	 *
+	 * @return the base-url, without a trailing slash
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + this.getPort();
+	}
+
+	/**
+	 * Disable Nagle's algorithm on the emulator's connections when it is started (default: false). The JDK's
+	 * server writes headers and body separately, which Nagle and delayed-ACKs turn into a ~40ms stall per
+	 * response; worth enabling to benchmark against the emulator.
+	 *
+	 * NOTE: this sets the JVM-wide system-property 'sun.net.httpserver.nodelay' (unless it is already set),
+	 * so affects every HttpServer of the JDK in the process; and the JDK reads it only once, so it has no
+	 * effect if one was already created before this emulator starts.
+	 *
+	 * @param noDelay -- true to disable Nagle's algorithm
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator setNoDelay( boolean noDelay ) {
+		this.noDelay = noDelay;
+		return this;
+	}
+
+	/**
+	 * Require every request to carry this token (as 'auth' or 'access_token'); others are answered 401.
+	 *
+	 * @param authToken -- if null, no token is required
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator setAuthToken( String authToken ) {
+		this.authToken = authToken;
+		return this;
+	}
+
+	/**
+	 * Delay every response by a random time in the provided range.
+	 *
+	 * @param minMillis -- least delay
+	 * @param maxMillis -- greatest delay
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator setLatency( long minMillis, long maxMillis ) {
+		this.minLatencyMillis = Math.max( 0, minMillis );
+		this.maxLatencyMillis = Math.max( this.minLatencyMillis, maxMillis );
+		return this;
+	}
+
+	/**
+	 * Fail a random fraction of requests (before they touch the data) with the provided http-code.
+	 *
+	 * @param rate -- from 0 (never) to 1 (always)
+	 * @param code -- ie: 503, or 429
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator setFailureRate( double rate, int code ) {
+		this.failureRate = rate;
+		this.failureCode = code;
+		return this;
+	}
+
+	/**
+	 * Fail the next requests (before they touch the data) with the provided http-code.
+	 *
+	 * @param count -- the number of requests to fail
+	 * @param code -- ie: 503, or 429
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator failNext( int count, int code ) {
+		this.failNextCode = code;
+		this.failNextCount.set( count );
+		return this;
+	}
+
+	/**
+	 * Returns a copy of the data at the provided-path.
+	 *
+	 * @param path -- '/'-separated; if null/empty, refers to the root
+	 * @return Maps, Strings, Numbers, Booleans, or null if there is no data
+	 */
+	public Object getValue( String path ) {
+
+		this.lock.readLock().lock();
+		try {
+			return FirebaseEmulator.copy( FirebaseEmulator.getAt(this.root, FirebaseEmulator.split(path)) );
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the data at the provided-path, as a PUT would (ie: to seed a test).
+	 *
+	 * @param path -- '/'-separated; if null/empty, refers to the root
+	 * @param value -- Maps, Lists, Strings, Numbers, Booleans; null deletes
+	 * @return FirebaseEmulator -- return this FirebaseEmulator object
+	 */
+	public FirebaseEmulator setValue( String path, Object value ) {
+
+		List<String> segments = FirebaseEmulator.split( path );
+		this.lock.writeLock().lock();
+		try {
+			this.root = FirebaseEmulator.setAt( this.root, segments, 0, FirebaseEmulator.normalize(value) );
+			this.notifyPut( segments );
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of requests received.
+	 *
+	 * @return the number of requests
+	 */
+	public long getRequestCount() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Returns the number of requests failed on purpose.
+	 *
+	 * @return the number of injected failures
+	 */
+	public long getInjectedFailureCount() {
+		return this.injectedFailures.get();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( FirebaseEmulator.class.getSimpleName() + "[ " )
+				.append( "(Port:" ).append( this.getPort() ).append( ") " )
+				.append( "(Requests:" ).append( this.requests.get() ).append( ") " )
+				.append( "(Injected failures:" ).append( this.injectedFailures.get() ).append( ") " )
+				.append( "(Streams:" ).append( this.listeners.size() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private void handle( HttpExchange exchange ) throws IOException {
+
+		this.requests.incrementAndGet();
+		try {
+
+			this.sleepForLatency();
+
+			Map<String, String> params = FirebaseEmulator.parseQuery( exchange.getRequestURI().getRawQuery() );
+			String method = exchange.getRequestMethod().toUpperCase();
+			if( "POST".equals( method ) && params.containsKey( "x-http-method-override" ) ) {
+				method = params.get( "x-http-method-override" ).toUpperCase();
+			}
+
+			// injected failures come first, as a struggling service's would
+			int code = this.nextInjectedFailure();
+			if( code > 0 ) {
+				this.injectedFailures.incrementAndGet();
+				this.respond( exchange, code, FirebaseEmulator.error("injected failure"), null );
+				return;
+			}
+
+			String token = params.containsKey( "auth" ) ? params.get( "auth" ) : params.get( "access_token" );
+			if( this.authToken != null && !this.authToken.equals( token ) ) {
+				this.respond( exchange, 401, FirebaseEmulator.error("Permission denied"), null );
+				return;
+			}
+
+			List<String> segments = FirebaseEmulator.split( FirebaseEmulator.stripJsonExtension(exchange.getRequestURI().getPath()) );
+			if( "GET".equals( method ) ) {
+				String accept = exchange.getRequestHeaders().getFirst( "Accept" );
+				if( accept != null && accept.contains( EVENT_STREAM ) ) {
+					this.stream( exchange, segments );
+				} else {
+					this.get( exchange, segments, params );
+				}
+			} else if( "PUT".equals( method ) || "DELETE".equals( method ) ) {
+				this.put( exchange, segments, params, "DELETE".equals(method) );
+			} else if( "PATCH".equals( method ) ) {
+				this.patch( exchange, segments, params );
+			} else if( "POST".equals( method ) ) {
+				this.post( exchange, segments, params );
+			} else {
+				this.respond( exchange, 405, FirebaseEmulator.error("Method not allowed: " + method), null );
+			}
+
+		} catch( BadRequestException e ) {
+
+			this.respond( exchange, 400, FirebaseEmulator.error(e.getMessage()), null );
+
+		} catch( IOException e ) {
+
+			LOGGER.debug( "emulator lost connection", e );
+
+		} catch( Throwable t ) {
+
+			LOGGER.error( "emulator failed handling request", t );
+			this.respond( exchange, 500, FirebaseEmulator.error("Internal error"), null );
+
+		} finally {
+
+			exchange.close();
+
+		}
+	}
+
+	private void get( HttpExchange exchange, List<String> segments, Map<String, String> params ) throws IOException, BadRequestException {
+
+		Query query = new Query( params );
+		boolean wantsETag = "true".equalsIgnoreCase( exchange.getRequestHeaders().getFirst("X-Firebase-ETag") );
+
+		String json;
+		this.lock.readLock().lock();
+		try {
+			Object value = FirebaseEmulator.getAt( this.root, segments );
+			json = FirebaseEmulator.toJson( query.apply(value) );
+		} finally {
+			this.lock.readLock().unlock();
+		}
+
+		this.respond( exchange, 200, json, wantsETag ? FirebaseEmulator.etagOf(json) : null );
+	}
+
+	private void put( HttpExchange exchange, List<String> segments, Map<String, String> params, boolean delete ) throws IOException, BadRequestException {
+
+		Object value = delete ? null : FirebaseEmulator.normalize( FirebaseEmulator.parse(exchange.getRequestBody()) );
+		String ifMatch = exchange.getRequestHeaders().getFirst( "if-match" );
+		boolean wantsETag = ifMatch != null || "true".equalsIgnoreCase( exchange.getRequestHeaders().getFirst("X-Firebase-ETag") );
+
+		String json;
+		String conflict = null;
+		this.lock.writeLock().lock();
+		try {
+
+			// a conditional write loses to any other since the ETag was read
+			if( ifMatch != null ) {
+				String current = FirebaseEmulator.toJson( FirebaseEmulator.getAt(this.root, segments) );
+				if( !ifMatch.equals( FirebaseEmulator.etagOf(current) ) ) {
+					conflict = current;
+				}
+			}
+
+			if( conflict == null ) {
+				this.root = FirebaseEmulator.setAt( this.root, segments, 0, value );
+				json = FirebaseEmulator.toJson( FirebaseEmulator.getAt(this.root, segments) );
+				this.notifyPut( segments );
+			} else {
+				json = conflict;
+			}
+
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		// respond only once the lock is released, so a slow client can't hold up every other
+		if( conflict != null ) {
+			this.respond( exchange, 412, conflict, FirebaseEmulator.etagOf(conflict) );
+			return;
+		}
+
+		this.respondToWrite( exchange, params, json, wantsETag ? FirebaseEmulator.etagOf(json) : null );
+	}
+
+	@SuppressWarnings("unchecked")
+	private void patch( HttpExchange exchange, List<String> segments, Map<String, String> params ) throws IOException, BadRequestException {
+
+		Object data = FirebaseEmulator.parse( exchange.getRequestBody() );
+		if( !(data instanceof Map) ) {
+			throw new BadRequestException( "Invalid data; couldn't parse JSON object. Are you sending a JSON object with valid key names?" );
+		}
+
+		// keys may be paths (a multi-path update); each replaces just what it names
+		Map<String, Object> updates = (Map<String, Object>) data;
+		Map<String, Object> written = new LinkedHashMap<String, Object>();
+		String json;
+		this.lock.writeLock().lock();
+		try {
+
+			for( Map.Entry<String, Object> update : updates.entrySet() ) {
+				List<String> path = new ArrayList<String>( segments );
+				path.addAll( FirebaseEmulator.split(update.getKey()) );
+				this.root = FirebaseEmulator.setAt( this.root, path, 0, FirebaseEmulator.normalize(update.getValue()) );
+				written.put( update.getKey(), FirebaseEmulator.getAt(this.root, path) );
+			}
+			json = FirebaseEmulator.toJson( written );
+			this.notifyPatch( segments, written );
+
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		this.respondToWrite( exchange, params, json, null );
+	}
+
+	private void post( HttpExchange exchange, List<String> segments, Map<String, String> params ) throws IOException, BadRequestException {
+
+		Object value = FirebaseEmulator.normalize( FirebaseEmulator.parse(exchange.getRequestBody()) );
+		String name = PushIdGenerator.NEXT_PUSH_ID();
+		List<String> path = new ArrayList<String>( segments );
+		path.add( name );
+
+		this.lock.writeLock().lock();
+		try {
+			this.root = FirebaseEmulator.setAt( this.root, path, 0, value );
+			this.notifyPut( path );
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		this.respondToWrite( exchange, params, FirebaseEmulator.toJson(Collections.singletonMap("name", name)), null );
+	}
+
+	/* holds the exchange (and its thread) open, writing events until the client goes away */
+	private void stream( HttpExchange exchange, List<String> segments ) throws IOException {
+
+		Listener listener = new Listener( segments );
+		this.lock.readLock().lock();
+		try {
+			listener.put( Collections.<String>emptyList(), FirebaseEmulator.getAt(this.root, segments) );
+			this.listeners.add( listener );
+		} finally {
+			this.lock.readLock().unlock();
+		}
+
+		try {
+
+			exchange.getResponseHeaders().set( "Content-Type", EVENT_STREAM );
+			exchange.getResponseHeaders().set( "Cache-Control", "no-cache" );
+			exchange.sendResponseHeaders( 200, 0 );
+			OutputStream out = exchange.getResponseBody();
+			while( true ) {
+				String event = listener.events.poll( KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS );
+				if( event == null ) {
+					event = "event: keep-alive\ndata: null\n\n";
+				} else if( event == Listener.CLOSED ) {
+					break;
+				}
+				out.write( event.getBytes("UTF-8") );
+				out.flush();
+			}
+
+		} catch( InterruptedException e ) {
+
+			Thread.currentThread().interrupt();
+
+		} finally {
+
+			this.listeners.remove( listener );
+
+		}
+	}
+
+	private void respondToWrite( HttpExchange exchange, Map<String, String> params, String json, String etag ) throws IOException {
+
+		if( "silent".equals( params.get("print") ) ) {
+			exchange.sendResponseHeaders( 204, -1 );
+			return;
+		}
+		this.respond( exchange, 200, json, etag );
+	}
+
+	private void respond( HttpExchange exchange, int code, String json, String etag ) throws IOException {
+
+		byte[] body = json.getBytes( "UTF-8" );
+		Headers headers = exchange.getResponseHeaders();
+		headers.set( "Content-Type", "application/json; charset=utf-8" );
+		if( etag != null ) {
+			headers.set( "ETag", etag );
+		}
+		exchange.sendResponseHeaders( code, body.length );
+		exchange.getResponseBody().write( body );
+	}
+
+	private void sleepForLatency() throws InterruptedException {
+
+		long min = this.minLatencyMillis;
+		long max = this.maxLatencyMillis;
+		if( max <= 0 ) {
+			return;
+		}
+		long delay = min;
+		if( max > min ) {
+			synchronized( this.random ) {
+				delay += (long) (this.random.nextDouble() * (max - min));
+			}
+		}
+		Thread.sleep( delay );
+	}
+
+	/* the http-code to fail the current request with, or 0 to handle it */
+	private int nextInjectedFailure() {
+
+		while( true ) {
+			int remaining = this.failNextCount.get();
+			if( remaining <= 0 ) {
+				break;
+			}
+			if( this.failNextCount.compareAndSet( remaining, remaining - 1 ) ) {
+				return this.failNextCode;
+			}
+		}
+
+		if( this.failureRate <= 0 ) {
+			return 0;
+		}
+		synchronized( this.random ) {
+			return this.random.nextDouble() < this.failureRate ? this.failureCode : 0;
+		}
+	}
+
+	/* must hold the write-lock */
+	private void notifyPut( List<String> written ) {
+
+		for( Listener listener : this.listeners ) {
+			if( FirebaseEmulator.startsWith( written, listener.segments ) ) {
+				listener.put( written.subList(listener.segments.size(), written.size()), FirebaseEmulator.getAt(this.root, written) );
+			} else if( FirebaseEmulator.startsWith( listener.segments, written ) ) {
+				listener.put( Collections.<String>emptyList(), FirebaseEmulator.getAt(this.root, listener.segments) );
+			}
+		}
+	}
+
+	/* must hold the write-lock */
+	private void notifyPatch( List<String> written, Map<String, Object> updates ) {
+
+		for( Listener listener : this.listeners ) {
+			if( FirebaseEmulator.startsWith( written, listener.segments ) ) {
+				listener.patch( written.subList(listener.segments.size(), written.size()), updates );
+			} else if( FirebaseEmulator.startsWith( listener.segments, written ) ) {
+				listener.put( Collections.<String>emptyList(), FirebaseEmulator.getAt(this.root, listener.segments) );
+			}
+		}
+	}
+
+	/* resolves server-values, turns lists into index-keyed maps, and drops nulls and empty maps */
+	@SuppressWarnings("unchecked")
+	private static Object normalize( Object value ) {
+
+		if( value instanceof List ) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			List<Object> list = (List<Object>) value;
+			for( int i = 0; i < list.size(); i++ ) {
+				map.put( String.valueOf(i), list.get(i) );
+			}
+			value = map;
+		}
+		if( !(value instanceof Map) ) {
+			return value;
+		}
+
+		Map<String, Object> map = (Map<String, Object>) value;
+		if( map.size() == 1 && map.containsKey( ".sv" ) ) {
+			Object sv = map.get( ".sv" );
+			if( "timestamp".equals( sv ) ) {
+				return System.currentTimeMillis();
+			}
+			// increments are resolved against the current value by setAt
+			return new Increment( sv instanceof Map ? ((Map<String, Object>) sv).get("increment") : null );
+		}
+
+		TreeMap<String, Object> result = new TreeMap<String, Object>( KEY_ORDER );
+		for( Map.Entry<String, Object> e : map.entrySet() ) {
+			Object child = FirebaseEmulator.normalize( e.getValue() );
+			if( child != null ) {
+				result.put( e.getKey(), child );
+			}
+		}
+		return result.isEmpty() ? null : result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object setAt( Object node, List<String> segments, int i, Object value ) {
+
+		if( i == segments.size() ) {
+			return FirebaseEmulator.resolveIncrements( node, value );
+		}
+
+		TreeMap<String, Object> map = node instanceof TreeMap ? (TreeMap<String, Object>) node : new TreeMap<String, Object>( KEY_ORDER );
+		String key = segments.get( i );
+		Object child = FirebaseEmulator.setAt( map.get(key), segments, i + 1, value );
+		if( child == null ) {
+			map.remove( key );
+		} else {
+			map.put( key, child );
+		}
+		return map.isEmpty() ? null : map;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object resolveIncrements( Object current, Object value ) {
+
+		if( value instanceof Increment ) {
+			Object delta = ((Increment) value).delta;
+			if( !(delta instanceof Number) ) {
+				return current;
+			}
+			Number base = current instanceof Number ? (Number) current : 0;
+			if( base instanceof Double || delta instanceof Double ) {
+				return base.doubleValue() + ((Number) delta).doubleValue();
+			}
+			return base.longValue() + ((Number) delta).longValue();
+		}
+		if( value instanceof TreeMap ) {
+			TreeMap<String, Object> map = (TreeMap<String, Object>) value;
+			for( Map.Entry<String, Object> e : map.entrySet() ) {
+				Object old = current instanceof Map ? ((Map<String, Object>) current).get( e.getKey() ) : null;
+				e.setValue( FirebaseEmulator.resolveIncrements(old, e.getValue()) );
+			}
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object getAt( Object node, List<String> segments ) {
+
+		for( String segment : segments ) {
+			if( !(node instanceof Map) ) {
+				return null;
+			}
+			node = ((Map<String, Object>) node).get( segment );
+		}
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object copy( Object value ) {
+
+		if( !(value instanceof Map) ) {
+			return value;
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for( Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet() ) {
+			result.put( e.getKey(), FirebaseEmulator.copy(e.getValue()) );
+		}
+		return result;
+	}
+
+	private static boolean startsWith( List<String> path, List<String> prefix ) {
+		return path.size() >= prefix.size() && path.subList( 0, prefix.size() ).equals( prefix );
+	}
+
+	private static List<String> split( String path ) {
+
+		List<String> result = new ArrayList<String>();
+		if( path != null ) {
+			for( String segment : path.split( "/" ) ) {
+				if( !segment.isEmpty() ) {
+					result.add( segment );
+				}
+			}
+		}
+		return result;
+	}
+
+	private static String stripJsonExtension( String path ) {
+		return path.endsWith( ".json" ) ? path.substring( 0, path.length() - 5 ) : path;
+	}
+
+	private static Map<String, String> parseQuery( String rawQuery ) throws UnsupportedEncodingException {
+
+		Map<String, String> result = new HashMap<String, String>();
+		if( rawQuery == null ) {
+			return result;
+		}
+		for( String pair : rawQuery.split( "&" ) ) {
+			if( pair.isEmpty() ) {
+				continue;
+			}
+			int eq = pair.indexOf( '=' );
+			String name = URLDecoder.decode( eq < 0 ? pair : pair.substring(0, eq), "UTF-8" );
+			String value = eq < 0 ? "" : URLDecoder.decode( pair.substring(eq + 1), "UTF-8" );
+			result.put( name, value );
+		}
+		return result;
+	}
+
+	private static Object parse( InputStream in ) throws BadRequestException {
+
+		try {
+			return MAPPER.readValue( in, Object.class );
+		} catch( Throwable t ) {
+			throw new BadRequestException( "Invalid data; couldn't parse JSON object, array, or value." );
+		}
+	}
+
+	private static Object parseParam( String name, String json ) throws BadRequestException {
+
+		try {
+			return MAPPER.readValue( json, Object.class );
+		} catch( Throwable t ) {
+			throw new BadRequestException( name + " must be a valid JSON value" );
+		}
+	}
+
+	private static String toJson( Object value ) {
+
+		try {
+			return MAPPER.writeValueAsString( value );
+		} catch( IOException e ) {
+			throw new IllegalStateException( "unable to write emulator data as json", e );
+		}
+	}
+
+	private static String error( String message ) {
+		return FirebaseEmulator.toJson( Collections.singletonMap("error", message) );
+	}
+
+	private static String etagOf( String json ) {
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( json.getBytes("UTF-8") );
+			StringBuilder result = new StringBuilder();
+			for( byte b : digest ) {
+				result.append( Character.forDigit( (b >> 4) & 15, 16 ) ).append( Character.forDigit( b & 15, 16 ) );
+			}
+			return result.toString();
+
+		} catch( Exception e ) {
+			throw new IllegalStateException( "unable to compute etag", e );
+		}
+	}
+
+	private static Integer parseIntKey( String key ) {
+
+		try {
+			return Integer.valueOf( key );
+		} catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	/* null, false, true, numbers, strings, objects */
+	@SuppressWarnings("unchecked")
+	private static int compareValues( Object a, Object b ) {
+
+		int ra = FirebaseEmulator.rankOf( a );
+		int rb = FirebaseEmulator.rankOf( b );
+		if( ra != rb ) {
+			return ra < rb ? -1 : 1;
+		}
+		if( a instanceof Number ) {
+			return Double.compare( ((Number) a).doubleValue(), ((Number) b).doubleValue() );
+		}
+		if( a instanceof String ) {
+			return ((String) a).compareTo( (String) b );
+		}
+		return 0;
+	}
+
+	private static int rankOf( Object value ) {
+
+		if( value == null ) return 0;
+		if( Boolean.FALSE.equals( value ) ) return 1;
+		if( Boolean.TRUE.equals( value ) ) return 2;
+		if( value instanceof Number ) return 3;
+		if( value instanceof String ) return 4;
+		return 5;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/* the query-parameters of a GET, applied to the value at its path */
+	private static class Query {
+
+		final String orderBy;
+		final List<String> orderByPath;
+		final Object startAt;
+		final Object endAt;
+		final Object equalTo;
+		final int limitToFirst;
+		final int limitToLast;
+		final boolean shallow;
+		final boolean filtered;
+
+		Query( Map<String, String> params ) throws BadRequestException {
+
+			this.shallow = "true".equals( params.get("shallow") );
+			Object orderBy = params.containsKey( "orderBy" ) ? FirebaseEmulator.parseParam( "orderBy", params.get("orderBy") ) : null;
+			if( orderBy != null && !(orderBy instanceof String) ) {
+				throw new BadRequestException( "orderBy must be a string" );
+			}
+			this.orderBy = (String) orderBy;
+			this.orderByPath = this.orderBy != null && !this.orderBy.startsWith( "$" ) ? FirebaseEmulator.split( this.orderBy ) : null;
+			this.startAt = params.containsKey( "startAt" ) ? FirebaseEmulator.parseParam( "startAt", params.get("startAt") ) : null;
+			this.endAt = params.containsKey( "endAt" ) ? FirebaseEmulator.parseParam( "endAt", params.get("endAt") ) : null;
+			this.equalTo = params.containsKey( "equalTo" ) ? FirebaseEmulator.parseParam( "equalTo", params.get("equalTo") ) : null;
+			this.limitToFirst = params.containsKey( "limitToFirst" ) ? Query.parseLimit( "limitToFirst", params.get("limitToFirst") ) : -1;
+			this.limitToLast = params.containsKey( "limitToLast" ) ? Query.parseLimit( "limitToLast", params.get("limitToLast") ) : -1;
+
+			boolean hasFilter = params.containsKey( "startAt" ) || params.containsKey( "endAt" ) || params.containsKey( "equalTo" )
+					|| this.limitToFirst >= 0 || this.limitToLast >= 0;
+			this.filtered = this.orderBy != null;
+			if( hasFilter && this.orderBy == null ) {
+				throw new BadRequestException( "orderBy must be defined when other query parameters are defined" );
+			}
+			if( this.shallow && this.filtered ) {
+				throw new BadRequestException( "Mixing 'shallow' and querying parameters is not supported" );
+			}
+			if( this.limitToFirst >= 0 && this.limitToLast >= 0 ) {
+				throw new BadRequestException( "Cannot specify both limitToFirst and limitToLast" );
+			}
+			if( "$key".equals( this.orderBy ) && !Query.isKey( this.startAt, this.endAt, this.equalTo ) ) {
+				throw new BadRequestException( "orderBy=\"$key\" requires string startAt, endAt and equalTo" );
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		Object apply( Object value ) {
+
+			if( !(value instanceof Map) ) {
+				return value;
+			}
+			Map<String, Object> map = (Map<String, Object>) value;
+
+			if( this.shallow ) {
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				for( Map.Entry<String, Object> e : map.entrySet() ) {
+					result.put( e.getKey(), e.getValue() instanceof Map ? Boolean.TRUE : e.getValue() );
+				}
+				return result;
+			}
+			if( !this.filtered ) {
+				return value;
+			}
+
+			// order the children, keeping those in range
+			List<Map.Entry<String, Object>> children = new ArrayList<Map.Entry<String, Object>>();
+			for( Map.Entry<String, Object> e : map.entrySet() ) {
+				Object sortValue = this.sortValueOf( e );
+				if( this.inRange( e.getKey(), sortValue ) ) {
+					children.add( e );
+				}
+			}
+			if( !"$key".equals( this.orderBy ) && !"$priority".equals( this.orderBy ) ) {
+				Collections.sort( children, new Comparator<Map.Entry<String, Object>>() {
+					@Override
+					public int compare( Map.Entry<String, Object> a, Map.Entry<String, Object> b ) {
+						int result = FirebaseEmulator.compareValues( Query.this.sortValueOf(a), Query.this.sortValueOf(b) );
+						return result != 0 ? result : KEY_ORDER.compare( a.getKey(), b.getKey() );
+					}
+				});
+			}
+
+			int from = 0;
+			int to = children.size();
+			if( this.limitToFirst >= 0 ) {
+				to = Math.min( to, this.limitToFirst );
+			} else if( this.limitToLast >= 0 ) {
+				from = Math.max( 0, to - this.limitToLast );
+			}
+
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			for( Map.Entry<String, Object> e : children.subList( from, to ) ) {
+				result.put( e.getKey(), e.getValue() );
+			}
+			return result;
+		}
+
+		private Object sortValueOf( Map.Entry<String, Object> child ) {
+
+			if( "$value".equals( this.orderBy ) ) {
+				return child.getValue();
+			}
+			if( this.orderByPath != null ) {
+				return FirebaseEmulator.getAt( child.getValue(), this.orderByPath );
+			}
+			return null;
+		}
+
+		private boolean inRange( String key, Object sortValue ) {
+
+			if( "$key".equals( this.orderBy ) || "$priority".equals( this.orderBy ) ) {
+				return (this.startAt == null || KEY_ORDER.compare( key, (String) this.startAt ) >= 0)
+						&& (this.endAt == null || KEY_ORDER.compare( key, (String) this.endAt ) <= 0)
+						&& (this.equalTo == null || key.equals( this.equalTo ));
+			}
+			return (this.startAt == null || FirebaseEmulator.compareValues( sortValue, this.startAt ) >= 0)
+					&& (this.endAt == null || FirebaseEmulator.compareValues( sortValue, this.endAt ) <= 0)
+					&& (this.equalTo == null || FirebaseEmulator.compareValues( sortValue, this.equalTo ) == 0);
+		}
+
+		private static boolean isKey( Object... values ) {
+
+			for( Object value : values ) {
+				if( value != null && !(value instanceof String) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int parseLimit( String name, String value ) throws BadRequestException {
+
+			try {
+				int result = Integer.parseInt( value.trim() );
+				if( result >= 0 ) {
+					return result;
+				}
+			} catch( NumberFormatException e ) {
+				// fall through
+			}
+			throw new BadRequestException( name + " must be a non-negative integer" );
+		}
+	}
+
+	/* an open event-stream; events are queued by writers and written by the stream's own thread */
+	private static class Listener {
+
+		static final String CLOSED = new String( "closed" );
+
+		final List<String> segments;
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+		Listener( List<String> segments ) {
+			this.segments = new ArrayList<String>( segments );
+		}
+
+		void put( List<String> path, Object data ) {
+			this.event( "put", path, data );
+		}
+
+		void patch( List<String> path, Object data ) {
+			this.event( "patch", path, data );
+		}
+
+		void close() {
+			this.events.offer( CLOSED );
+		}
+
+		private void event( String type, List<String> path, Object data ) {
+
+			StringBuilder relative = new StringBuilder( "/" );
+			for( String segment : path ) {
+				relative.append( relative.length() > 1 ? "/" : "" ).append( segment );
+			}
+			Map<String, Object> payload = new LinkedHashMap<String, Object>();
+			payload.put( "path", relative.toString() );
+			payload.put( "data", data );
+			this.events.offer( "event: " + type + "\ndata: " + FirebaseEmulator.toJson( payload ) + "\n\n" );
+		}
+	}
+
+	/* a {".sv":{"increment":n}} awaiting the current value it applies to */
+	private static class Increment {
+
+		final Object delta;
+
+		Increment( Object delta ) {
+			this.delta = delta;
+		}
+	}
+
+	private static class BadRequestException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		BadRequestException( String message ) {
+			super( message );
+		}
+	}
+
+}
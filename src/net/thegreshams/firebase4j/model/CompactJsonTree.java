@@ -0,0 +1,654 @@
+package net.thegreshams.firebase4j.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * A compact, read-only representation of a JSON document.
+ *
+ * Rather than a tree of LinkedHashMaps and boxed leaves, every node lives in a handful of parallel primitive
+ * arrays: numeric leaves are stored in long/double arrays, object-keys are interned once per tree, and the
+ * children of each container are stored contiguously so a container is just an offset and a count. Key-ids
+ * are assigned in key-order and object children are held in key-order, so a path-lookup is one hash-probe
+ * to find the key-id and then an int binary-search per segment.
+ *
+ * Paths are '/'-separated; array elements are addressed by their index (ie: 'users/abc/tags/0').
+ * Instances are immutable and safe to share between threads.
+ */
+public class CompactJsonTree {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	private static final JsonFactory		JSON_FACTORY			= new JsonFactory();
+
+	public static final byte				TYPE_NULL				= 0;
+	public static final byte				TYPE_FALSE				= 1;
+	public static final byte				TYPE_TRUE				= 2;
+	public static final byte				TYPE_LONG				= 3;
+	public static final byte				TYPE_DOUBLE				= 4;
+	public static final byte				TYPE_STRING				= 5;
+	public static final byte				TYPE_OBJECT				= 6;
+	public static final byte				TYPE_ARRAY				= 7;
+
+	private static final int				ROOT					= 0;
+	private static final int				MISSING					= -1;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/* per-node: type, and (by type) an index into longs/doubles/strings or the offset of its first child */
+	private final byte[] types;
+	private final int[] values;
+	private final int[] counts;
+
+	/* per-child: interned key (objects only) and node */
+	private final int[] childKeys;
+	private final int[] childNodes;
+
+	/* interned keys, sorted; keyTable is an open-addressing table of (key-id + 1), 0 meaning empty */
+	private final String[] keys;
+	private final int[] keyTable;
+	private final long[] longs;
+	private final double[] doubles;
+	private final String[] strings;
+
+	/**
+	 * Parses the provided json into a compact tree.
+	 *
+	 * @param json -- can be null/empty, but will result in a tree holding a single null
+	 * @throws JacksonUtilityException if the json could not be parsed
+	 */
+	public CompactJsonTree( String json ) throws JacksonUtilityException {
+
+		Builder builder = new Builder();
+		if( json == null || json.trim().isEmpty() ) {
+			LOGGER.info( "json was null/empty; building tree of a single null" );
+			builder.leaf( TYPE_NULL, 0 );
+		} else {
+			try {
+
+				JsonParser parser = JSON_FACTORY.createJsonParser( json );
+				try {
+					builder.read( parser );
+				} finally {
+					parser.close();
+				}
+
+			} catch( Throwable t ) {
+
+				String msg = "unable to build compact tree from json: " + json;
+				LOGGER.error( msg );
+				throw new JacksonUtilityException( msg, t );
+
+			}
+		}
+
+		this.types = Arrays.copyOf( builder.types, builder.nodeCount );
+		this.values = Arrays.copyOf( builder.values, builder.nodeCount );
+		this.counts = Arrays.copyOf( builder.counts, builder.nodeCount );
+		this.childKeys = Arrays.copyOf( builder.childKeys, builder.childCount );
+		this.childNodes = Arrays.copyOf( builder.childNodes, builder.childCount );
+		this.keys = builder.keyList.toArray( new String[builder.keyList.size()] );
+		this.keyTable = CompactJsonTree.sortKeys( this.keys, this.childKeys );
+		this.longs = Arrays.copyOf( builder.longs, builder.longCount );
+		this.doubles = Arrays.copyOf( builder.doubles, builder.doubleCount );
+		this.strings = builder.stringList.toArray( new String[builder.stringList.size()] );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Returns whether there is a value (including a JSON null) at the provided path.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return true if the path resolves
+	 */
+	public boolean has( String path ) {
+		return this.find( path ) != MISSING;
+	}
+
+	/**
+	 * Returns the type of the value at the provided path; one of the TYPE_ constants.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return the type, or TYPE_NULL if the path does not resolve
+	 */
+	public byte getType( String path ) {
+
+		int node = this.find( path );
+		return node == MISSING ? TYPE_NULL : this.types[node];
+	}
+
+	/**
+	 * Returns the value at the provided path as a long.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @param defaultValue -- returned if the path does not resolve to a number
+	 * @return the value
+	 */
+	public long getLong( String path, long defaultValue ) {
+
+		int node = this.find( path );
+		if( node == MISSING ) 					return defaultValue;
+		if( this.types[node] == TYPE_LONG ) 	return this.longs[this.values[node]];
+		if( this.types[node] == TYPE_DOUBLE ) 	return (long) this.doubles[this.values[node]];
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the value at the provided path as a double.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @param defaultValue -- returned if the path does not resolve to a number
+	 * @return the value
+	 */
+	public double getDouble( String path, double defaultValue ) {
+
+		int node = this.find( path );
+		if( node == MISSING ) 					return defaultValue;
+		if( this.types[node] == TYPE_LONG ) 	return this.longs[this.values[node]];
+		if( this.types[node] == TYPE_DOUBLE ) 	return this.doubles[this.values[node]];
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the value at the provided path as a boolean.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @param defaultValue -- returned if the path does not resolve to a boolean
+	 * @return the value
+	 */
+	public boolean getBoolean( String path, boolean defaultValue ) {
+
+		int node = this.find( path );
+		if( node == MISSING ) 					return defaultValue;
+		if( this.types[node] == TYPE_TRUE ) 	return true;
+		if( this.types[node] == TYPE_FALSE ) 	return false;
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the value at the provided path as a String.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return the value, or null if the path does not resolve to a string
+	 */
+	public String getString( String path ) {
+
+		int node = this.find( path );
+		if( node == MISSING || this.types[node] != TYPE_STRING ) {
+			return null;
+		}
+		return this.strings[this.values[node]];
+	}
+
+	/**
+	 * Returns the value at the provided path in the same form Jackson data-binding would: Maps, Lists, Strings,
+	 * Booleans, Longs/Integers and Doubles. Containers are materialized on every call.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return the value, or null if the path does not resolve
+	 */
+	public Object get( String path ) {
+
+		int node = this.find( path );
+		return node == MISSING ? null : this.materialize( node );
+	}
+
+	/**
+	 * Returns the number of children of the container at the provided path.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return the number of children, or 0 if the path does not resolve to an object/array
+	 */
+	public int size( String path ) {
+
+		int node = this.find( path );
+		if( node == MISSING || !this.isContainer(node) ) {
+			return 0;
+		}
+		return this.counts[node];
+	}
+
+	/**
+	 * Returns the keys of the object at the provided path, in key-order.
+	 *
+	 * @param path -- if null/empty, refers to the root
+	 * @return the keys; will not return null
+	 */
+	public List<String> getKeys( String path ) {
+
+		int node = this.find( path );
+		if( node == MISSING || this.types[node] != TYPE_OBJECT ) {
+			return Collections.emptyList();
+		}
+
+		List<String> result = new ArrayList<String>( this.counts[node] );
+		int first = this.values[node];
+		for( int i = 0; i < this.counts[node]; i++ ) {
+			result.add( this.keys[this.childKeys[first + i]] );
+		}
+		return result;
+	}
+
+	/**
+	 * Materializes the whole tree as a map, like {@link FirebaseResponse#getBody()}.
+	 *
+	 * @return a map of Strings to Objects; empty if the root is not an object; will not return null
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> toMap() {
+
+		if( this.types[ROOT] != TYPE_OBJECT ) {
+			return new LinkedHashMap<String, Object>();
+		}
+		return (Map<String, Object>) this.materialize( ROOT );
+	}
+
+	/**
+	 * Returns the number of nodes (containers and leaves) in the tree.
+	 *
+	 * @return the number of nodes
+	 */
+	public int getNodeCount() {
+		return this.types.length;
+	}
+
+	@Override
+	public String toString() {
+		return CompactJsonTree.class.getSimpleName() + "[ (Nodes:" + this.types.length + ") (Keys:" + this.keys.length + ") ]";
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private boolean isContainer( int node ) {
+		return this.types[node] == TYPE_OBJECT || this.types[node] == TYPE_ARRAY;
+	}
+
+	private int find( String path ) {
+
+		int node = ROOT;
+		if( path == null ) {
+			return node;
+		}
+
+		int length = path.length();
+		int start = 0;
+		while( start <= length && node != MISSING ) {
+			int end = path.indexOf( '/', start );
+			if( end < 0 ) {
+				end = length;
+			}
+			if( end > start ) {
+				node = this.child( node, path.substring( start, end ).trim() );
+			}
+			start = end + 1;
+		}
+
+		return node;
+	}
+
+	private int child( int node, String segment ) {
+
+		if( segment.isEmpty() ) {
+			return node;
+		}
+
+		int first = this.values[node];
+		int count = this.counts[node];
+		if( this.types[node] == TYPE_ARRAY ) {
+			try {
+				int index = Integer.parseInt( segment );
+				return index >= 0 && index < count ? this.childNodes[first + index] : MISSING;
+			} catch( NumberFormatException e ) {
+				return MISSING;
+			}
+		}
+		if( this.types[node] != TYPE_OBJECT ) {
+			return MISSING;
+		}
+
+		int key = this.keyId( segment );
+		if( key < 0 ) {
+			return MISSING;
+		}
+		int lo = first, hi = first + count - 1;
+		while( lo <= hi ) {
+			int mid = (lo + hi) >>> 1;
+			int childKey = this.childKeys[mid];
+			if( childKey < key ) {
+				lo = mid + 1;
+			} else if( childKey > key ) {
+				hi = mid - 1;
+			} else {
+				return this.childNodes[mid];
+			}
+		}
+		return MISSING;
+	}
+
+	private int keyId( String key ) {
+
+		int mask = this.keyTable.length - 1;
+		for( int slot = CompactJsonTree.spread( key.hashCode() ) & mask; ; slot = (slot + 1) & mask ) {
+			int entry = this.keyTable[slot];
+			if( entry == 0 ) {
+				return MISSING;
+			}
+			if( this.keys[entry - 1].equals( key ) ) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/* sorts the interned keys in place, renumbers the child-keys to match, and returns the key-table */
+	private static int[] sortKeys( String[] keys, int[] childKeys ) {
+
+		String[] unsorted = keys.clone();
+		Arrays.sort( keys );
+		Map<String, Integer> sortedIds = new HashMap<String, Integer>( keys.length * 2 );
+		for( int i = 0; i < keys.length; i++ ) {
+			sortedIds.put( keys[i], Integer.valueOf( i ) );
+		}
+		int[] renumber = new int[unsorted.length];
+		for( int i = 0; i < unsorted.length; i++ ) {
+			renumber[i] = sortedIds.get( unsorted[i] ).intValue();
+		}
+		for( int i = 0; i < childKeys.length; i++ ) {
+			if( childKeys[i] >= 0 ) { // array-children have no key
+				childKeys[i] = renumber[childKeys[i]];
+			}
+		}
+
+		int capacity = 2;
+		while( capacity < keys.length * 2 ) {
+			capacity <<= 1;
+		}
+		int[] result = new int[capacity];
+		for( int i = 0; i < keys.length; i++ ) {
+			int slot = CompactJsonTree.spread( keys[i].hashCode() ) & (capacity - 1);
+			while( result[slot] != 0 ) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			result[slot] = i + 1;
+		}
+		return result;
+	}
+
+	private static int spread( int hash ) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private Object materialize( int node ) {
+
+		int first = this.values[node];
+		switch( this.types[node] ) {
+			case TYPE_FALSE:
+				return Boolean.FALSE;
+			case TYPE_TRUE:
+				return Boolean.TRUE;
+			case TYPE_LONG:
+				long l = this.longs[first];
+				if( l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE ) {
+					return Integer.valueOf( (int) l ); // matches Jackson's binding of small ints
+				}
+				return Long.valueOf( l );
+			case TYPE_DOUBLE:
+				return Double.valueOf( this.doubles[first] );
+			case TYPE_STRING:
+				return this.strings[first];
+			case TYPE_OBJECT:
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for( int i = 0; i < this.counts[node]; i++ ) {
+					map.put( this.keys[this.childKeys[first + i]], this.materialize( this.childNodes[first + i] ) );
+				}
+				return map;
+			case TYPE_ARRAY:
+				List<Object> list = new ArrayList<Object>( this.counts[node] );
+				for( int i = 0; i < this.counts[node]; i++ ) {
+					list.add( this.materialize( this.childNodes[first + i] ) );
+				}
+				return list;
+			default:
+				return null;
+		}
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Accumulates nodes while streaming through the parser. Each open container collects its children on a
+	 * scratch-stack; when it closes they are copied, in one block, onto the end of the child-arrays.
+	 */
+	private static class Builder {
+
+		byte[] types = new byte[64];
+		int[] values = new int[64];
+		int[] counts = new int[64];
+		int nodeCount;
+
+		int[] childKeys = new int[64];
+		int[] childNodes = new int[64];
+		int childCount;
+
+		long[] longs = new long[16];
+		int longCount;
+		double[] doubles = new double[16];
+		int doubleCount;
+
+		final List<String> keyList = new ArrayList<String>();
+		final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+		final List<String> stringList = new ArrayList<String>();
+
+		/* scratch-stack of (key, node) pairs for the containers currently open */
+		int[] pendingKeys = new int[64];
+		int[] pendingNodes = new int[64];
+		int pendingCount;
+
+		void read( JsonParser parser ) throws Exception {
+
+			JsonToken token = parser.nextToken();
+			if( token == null ) {
+				this.leaf( TYPE_NULL, 0 );
+				return;
+			}
+			this.value( parser, token );
+		}
+
+		/* reads the value starting at the provided token and returns its node */
+		int value( JsonParser parser, JsonToken token ) throws Exception {
+
+			switch( token ) {
+				case START_OBJECT:
+					return this.container( parser, TYPE_OBJECT );
+				case START_ARRAY:
+					return this.container( parser, TYPE_ARRAY );
+				case VALUE_STRING:
+					this.stringList.add( parser.getText() );
+					return this.leaf( TYPE_STRING, this.stringList.size() - 1 );
+				case VALUE_NUMBER_INT:
+					if( parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ) {
+						return this.leaf( TYPE_DOUBLE, this.addDouble( parser.getDoubleValue() ) );
+					}
+					return this.leaf( TYPE_LONG, this.addLong( parser.getLongValue() ) );
+				case VALUE_NUMBER_FLOAT:
+					return this.leaf( TYPE_DOUBLE, this.addDouble( parser.getDoubleValue() ) );
+				case VALUE_TRUE:
+					return this.leaf( TYPE_TRUE, 0 );
+				case VALUE_FALSE:
+					return this.leaf( TYPE_FALSE, 0 );
+				default:
+					return this.leaf( TYPE_NULL, 0 );
+			}
+		}
+
+		int container( JsonParser parser, byte type ) throws Exception {
+
+			int node = this.leaf( type, 0 );
+			int mark = this.pendingCount;
+
+			JsonToken token;
+			while( (token = parser.nextToken()) != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY ) {
+				int key = -1;
+				if( token == JsonToken.FIELD_NAME ) {
+					key = this.intern( parser.getCurrentName() );
+					token = parser.nextToken();
+				}
+				int child = this.value( parser, token );
+				this.pend( key, child );
+			}
+
+			// move this container's children from the scratch-stack to the child-arrays
+			int count = this.pendingCount - mark;
+			if( type == TYPE_OBJECT ) {
+				this.sortPendingByKey( mark, count );
+			}
+			this.ensureChildCapacity( this.childCount + count );
+			System.arraycopy( this.pendingKeys, mark, this.childKeys, this.childCount, count );
+			System.arraycopy( this.pendingNodes, mark, this.childNodes, this.childCount, count );
+			this.values[node] = this.childCount;
+			this.counts[node] = count;
+			this.childCount += count;
+			this.pendingCount = mark;
+
+			return node;
+		}
+
+		int leaf( byte type, int value ) {
+
+			if( this.nodeCount == this.types.length ) {
+				int capacity = this.nodeCount * 2;
+				this.types = Arrays.copyOf( this.types, capacity );
+				this.values = Arrays.copyOf( this.values, capacity );
+				this.counts = Arrays.copyOf( this.counts, capacity );
+			}
+			this.types[this.nodeCount] = type;
+			this.values[this.nodeCount] = value;
+			return this.nodeCount++;
+		}
+
+		int addLong( long l ) {
+
+			if( this.longCount == this.longs.length ) {
+				this.longs = Arrays.copyOf( this.longs, this.longCount * 2 );
+			}
+			this.longs[this.longCount] = l;
+			return this.longCount++;
+		}
+
+		int addDouble( double d ) {
+
+			if( this.doubleCount == this.doubles.length ) {
+				this.doubles = Arrays.copyOf( this.doubles, this.doubleCount * 2 );
+			}
+			this.doubles[this.doubleCount] = d;
+			return this.doubleCount++;
+		}
+
+		int intern( String key ) {
+
+			Integer id = this.keyIds.get( key );
+			if( id == null ) {
+				id = Integer.valueOf( this.keyList.size() );
+				this.keyList.add( key );
+				this.keyIds.put( key, id );
+			}
+			return id.intValue();
+		}
+
+		void pend( int key, int node ) {
+
+			if( this.pendingCount == this.pendingKeys.length ) {
+				this.pendingKeys = Arrays.copyOf( this.pendingKeys, this.pendingCount * 2 );
+				this.pendingNodes = Arrays.copyOf( this.pendingNodes, this.pendingCount * 2 );
+			}
+			this.pendingKeys[this.pendingCount] = key;
+			this.pendingNodes[this.pendingCount] = node;
+			this.pendingCount++;
+		}
+
+		void ensureChildCapacity( int capacity ) {
+
+			if( capacity > this.childKeys.length ) {
+				capacity = Math.max( capacity, this.childKeys.length * 2 );
+				this.childKeys = Arrays.copyOf( this.childKeys, capacity );
+				this.childNodes = Arrays.copyOf( this.childNodes, capacity );
+			}
+		}
+
+		/* Firebase usually returns keys in order, so only sort when they aren't */
+		void sortPendingByKey( int from, int count ) {
+
+			boolean sorted = true;
+			for( int i = from + 1; i < from + count && sorted; i++ ) {
+				sorted = this.keyList.get( this.pendingKeys[i - 1] ).compareTo( this.keyList.get( this.pendingKeys[i] ) ) <= 0;
+			}
+			if( sorted ) {
+				return;
+			}
+
+			Integer[] order = new Integer[count];
+			for( int i = 0; i < count; i++ ) {
+				order[i] = Integer.valueOf( from + i );
+			}
+			final int[] pendingKeys = this.pendingKeys;
+			final List<String> keyList = this.keyList;
+			Arrays.sort( order, new Comparator<Integer>() {
+				@Override
+				public int compare( Integer a, Integer b ) {
+					return keyList.get( pendingKeys[a.intValue()] ).compareTo( keyList.get( pendingKeys[b.intValue()] ) );
+				}
+			});
+
+			int[] sortedKeys = new int[count];
+			int[] sortedNodes = new int[count];
+			for( int i = 0; i < count; i++ ) {
+				sortedKeys[i] = this.pendingKeys[order[i].intValue()];
+				sortedNodes[i] = this.pendingNodes[order[i].intValue()];
+			}
+			System.arraycopy( sortedKeys, 0, this.pendingKeys, from, count );
+			System.arraycopy( sortedNodes, 0, this.pendingNodes, from, count );
+		}
+	}
+
+}
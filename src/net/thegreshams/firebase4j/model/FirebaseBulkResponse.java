@@ -0,0 +1,122 @@
+package net.thegreshams.firebase4j.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of reading many paths at once: a response for every path that could be read, and the cause
+ * for every path that could not (ie: the request itself failed). A path is in exactly one of the two.
+ */
+public class FirebaseBulkResponse {
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final Map<String, FirebaseResponse> responses;
+	private final Map<String, Throwable> failures;
+	private final int requestCount;
+
+	/**
+	 * @param responses -- paths mapped to their responses
+	 * @param failures -- paths mapped to why they could not be read
+	 * @param requestCount -- the number of requests made to read them
+	 */
+	public FirebaseBulkResponse( Map<String, FirebaseResponse> responses, Map<String, Throwable> failures, int requestCount ) {
+
+		this.responses = Collections.unmodifiableMap( responses != null
+				? new LinkedHashMap<String, FirebaseResponse>( responses )
+				: new LinkedHashMap<String, FirebaseResponse>() );
+		this.failures = Collections.unmodifiableMap( failures != null
+				? new LinkedHashMap<String, Throwable>( failures )
+				: new LinkedHashMap<String, Throwable>() );
+		this.requestCount = requestCount;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Returns whether every path was read, and every response was successful
+	 *
+	 * @return true if the whole batch succeeded
+	 */
+	public boolean getSuccess() {
+
+		if( !this.failures.isEmpty() ) {
+			return false;
+		}
+		for( FirebaseResponse response : this.responses.values() ) {
+			if( !response.getSuccess() ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the responses, in the order the paths were provided; a response may itself be unsuccessful
+	 * (ie: permission denied)
+	 *
+	 * @return an unmodifiable map of paths to responses
+	 */
+	public Map<String, FirebaseResponse> getResponses() {
+		return this.responses;
+	}
+
+	/**
+	 * Returns the response for a path
+	 *
+	 * @param path -- as provided
+	 * @return {@link FirebaseResponse}, or null if the path was not read
+	 */
+	public FirebaseResponse getResponse( String path ) {
+		return this.responses.get( path );
+	}
+
+	/**
+	 * Returns the paths that could not be read, and why
+	 *
+	 * @return an unmodifiable map of paths to causes
+	 */
+	public Map<String, Throwable> getFailures() {
+		return this.failures;
+	}
+
+	/**
+	 * Returns the number of requests made to read the batch; less than the number of paths if siblings
+	 * were merged
+	 *
+	 * @return the number of requests
+	 */
+	public int getRequestCount() {
+		return this.requestCount;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( FirebaseBulkResponse.class.getSimpleName() + "[ " )
+				.append( "(Success:" ).append( this.getSuccess() ).append( ") " )
+				.append( "(Responses:" ).append( this.responses.size() ).append( ") " )
+				.append( "(Failures:" ).append( this.failures.keySet() ).append( ") " )
+				.append( "(Requests:" ).append( this.requestCount ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,203 @@
+package net.thegreshams.firebase4j.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The structural difference between two snapshots of the same location: the paths (relative to that
+ * location, '/'-separated) that were added, changed, or removed. Each change is reported once, at the
+ * highest path it affects; a whole new subtree is one added path, not one per leaf.
+ *
+ * Snapshots are whatever Jackson binds JSON to: a Map, List, String, Number, Boolean, or null (no data).
+ */
+public class FirebaseDiff {
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+	private final Map<String, Object> added;
+	private final Map<String, Object> changed;
+	private final Map<String, Object> removed;
+
+	/**
+	 * @param added -- paths mapped to their new data
+	 * @param changed -- paths mapped to their new data
+	 * @param removed -- paths mapped to their old data
+	 */
+	public FirebaseDiff( Map<String, Object> added, Map<String, Object> changed, Map<String, Object> removed ) {
+
+		this.added = FirebaseDiff.unmodifiable( added );
+		this.changed = FirebaseDiff.unmodifiable( changed );
+		this.removed = FirebaseDiff.unmodifiable( removed );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Computes the difference between two snapshots, in a single walk of both. Map keys are compared
+	 * first; only the subtrees under keys present in both are descended into.
+	 *
+	 * @param before -- the older snapshot; can be null
+	 * @param after -- the newer snapshot; can be null
+	 * @return {@link FirebaseDiff}; empty if the snapshots are equal
+	 */
+	public static FirebaseDiff COMPUTE( Object before, Object after ) {
+
+		Map<String, Object> added = new LinkedHashMap<String, Object>();
+		Map<String, Object> changed = new LinkedHashMap<String, Object>();
+		Map<String, Object> removed = new LinkedHashMap<String, Object>();
+
+		// no data at the location is the same as an empty object, so a first snapshot adds its children
+		if( before == null && after instanceof Map ) {
+			before = Collections.emptyMap();
+		}
+		if( after == null && before instanceof Map ) {
+			after = Collections.emptyMap();
+		}
+		FirebaseDiff.compute( "", before, after, added, changed, removed );
+
+		return new FirebaseDiff( added, changed, removed );
+	}
+
+	/**
+	 * Returns the paths that had no data before
+	 *
+	 * @return an unmodifiable map of paths to their new data
+	 */
+	public Map<String, Object> getAdded() {
+		return this.added;
+	}
+
+	/**
+	 * Returns the paths whose data was replaced
+	 *
+	 * @return an unmodifiable map of paths to their new data
+	 */
+	public Map<String, Object> getChanged() {
+		return this.changed;
+	}
+
+	/**
+	 * Returns the paths that have no data any more
+	 *
+	 * @return an unmodifiable map of paths to their old data
+	 */
+	public Map<String, Object> getRemoved() {
+		return this.removed;
+	}
+
+	/**
+	 * Returns whether the snapshots were equal
+	 *
+	 * @return true if nothing was added, changed, or removed
+	 */
+	public boolean isEmpty() {
+		return this.added.isEmpty() && this.changed.isEmpty() && this.removed.isEmpty();
+	}
+
+	/**
+	 * Returns the number of paths added, changed, or removed
+	 *
+	 * @return the number of changed paths
+	 */
+	public int size() {
+		return this.added.size() + this.changed.size() + this.removed.size();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( FirebaseDiff.class.getSimpleName() + "[ " )
+				.append( "(Added:" ).append( this.added.keySet() ).append( ") " )
+				.append( "(Changed:" ).append( this.changed.keySet() ).append( ") " )
+				.append( "(Removed:" ).append( this.removed.keySet() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private static void compute( String path, Object before, Object after,
+			Map<String, Object> added, Map<String, Object> changed, Map<String, Object> removed ) {
+
+		if( before == null && after == null ) {
+			return;
+		}
+		if( before == null ) {
+			added.put( path, after );
+			return;
+		}
+		if( after == null ) {
+			removed.put( path, before );
+			return;
+		}
+
+		if( before instanceof Map && after instanceof Map ) {
+
+			Map<?, ?> beforeMap = (Map<?, ?>) before;
+			Map<?, ?> afterMap = (Map<?, ?>) after;
+			for( Map.Entry<?, ?> entry : afterMap.entrySet() ) {
+				String key = String.valueOf( entry.getKey() );
+				FirebaseDiff.compute( FirebaseDiff.child(path, key), beforeMap.get( entry.getKey() ), entry.getValue(),
+						added, changed, removed );
+			}
+			for( Map.Entry<?, ?> entry : beforeMap.entrySet() ) {
+				if( entry.getValue() != null && afterMap.get( entry.getKey() ) == null ) {
+					removed.put( FirebaseDiff.child(path, String.valueOf(entry.getKey())), entry.getValue() );
+				}
+			}
+			return;
+		}
+
+		// leaves (and arrays, which the service only returns for small integer-keyed objects) compare whole
+		if( !FirebaseDiff.equal( before, after ) ) {
+			changed.put( path, after );
+		}
+	}
+
+	/* numbers compare by value, since the same number can bind as an Integer, Long, or Double */
+	private static boolean equal( Object a, Object b ) {
+
+		if( a instanceof Number && b instanceof Number ) {
+			if( a.getClass() == b.getClass() ) {
+				return a.equals( b );
+			}
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		}
+		return a.equals( b );
+	}
+
+	private static String child( String path, String key ) {
+		return path.isEmpty() ? key : path + "/" + key;
+	}
+
+	private static Map<String, Object> unmodifiable( Map<String, Object> map ) {
+		return Collections.unmodifiableMap( map != null
+				? new LinkedHashMap<String, Object>( map )
+				: new LinkedHashMap<String, Object>() );
+	}
+
+}
@@ -1,7 +1,12 @@
 package net.thegreshams.firebase4j.model;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.util.JacksonUtility;
 
 import org.apache.log4j.Logger;
 
@@ -21,11 +26,19 @@ public class FirebaseResponse {
 	private final int code;
 	private final Map<String, Object> body;
 	private final String rawBody;
+	private final int rawBodyLength;
+	private final Map<String, String> headers;
+	private volatile CompactJsonTree compactBody;
 	
 	public FirebaseResponse( boolean success, int code, Map<String, Object> body, String rawBody ) {
+		this( success, code, body, rawBody, null );
+	}
+	
+	public FirebaseResponse( boolean success, int code, Map<String, Object> body, String rawBody, Map<String, String> headers ) {
 		
 		this.success = success;
 		this.code = code;
+		this.headers = FirebaseResponse.buildHeaders( headers );
 		
 		if( body == null ) {
 			LOGGER.info( "body was null; replacing with empty map" );
@@ -38,6 +51,27 @@ public class FirebaseResponse {
 			rawBody = new String();
 		}
 		this.rawBody = rawBody.trim();
+		this.rawBodyLength = this.rawBody.length();
+	}
+	
+	/**
+	 * Builds a response that holds its body only in compact form; {@link #getBody()} will materialize
+	 * a map from it on every call. The raw-body is not kept (only its length), so {@link #getRawBody()}
+	 * re-serializes the tree on every call.
+	 */
+	public FirebaseResponse( boolean success, int code, CompactJsonTree compactBody, String rawBody ) {
+		this( success, code, compactBody, rawBody, null );
+	}
+	
+	public FirebaseResponse( boolean success, int code, CompactJsonTree compactBody, String rawBody, Map<String, String> headers ) {
+		
+		this.success = success;
+		this.code = code;
+		this.headers = FirebaseResponse.buildHeaders( headers );
+		this.body = null;
+		this.compactBody = compactBody;
+		this.rawBody = null;
+		this.rawBodyLength = rawBody != null ? rawBody.trim().length() : 0;
 	}
 	
 	
@@ -67,22 +101,265 @@ public class FirebaseResponse {
 		return this.code;
 	}
 	
+	/**
+	 * Returns the class of the HTTP status code
+	 * 
+	 * @return {@link StatusClass}
+	 */
+	public StatusClass getStatusClass() {
+		return FirebaseResponse.GET_STATUS_CLASS( this.code );
+	}
+	
+	/**
+	 * Returns whether the same request may succeed if made again later; see {@link #IS_RETRYABLE(int)}
+	 * 
+	 * @return true if retryable
+	 */
+	public boolean isRetryable() {
+		return FirebaseResponse.IS_RETRYABLE( this.code );
+	}
+	
+	/**
+	 * Returns whether the same request may succeed if made again, given how many times it has been made; 
+	 * see {@link #IS_RETRYABLE(int, int)}
+	 * 
+	 * @param attempt -- how many times the request has been made, counting the one that got this response
+	 * @return true if retryable
+	 */
+	public boolean isRetryable( int attempt ) {
+		return FirebaseResponse.IS_RETRYABLE( this.code, attempt );
+	}
+	
+	/**
+	 * Returns whether the service is shedding load; see {@link #IS_THROTTLED(int)}
+	 * 
+	 * @return true if throttled
+	 */
+	public boolean isThrottled() {
+		return FirebaseResponse.IS_THROTTLED( this.code );
+	}
+	
+	/**
+	 * Returns whether the request's credentials were refused, such as when its token expired; see 
+	 * {@link #IS_AUTH_EXPIRED(int)}
+	 * 
+	 * @return true if the auth-token should be refreshed
+	 */
+	public boolean isAuthExpired() {
+		return FirebaseResponse.IS_AUTH_EXPIRED( this.code );
+	}
+	
+	/**
+	 * Returns how long the service asked to be left alone, from the 'Retry-After' header
+	 * 
+	 * @return milliseconds, or 0 if there was no (usable) 'Retry-After'
+	 */
+	public long getRetryAfterMillis() {
+		return FirebaseResponse.GET_RETRY_AFTER_MILLIS( this.getHeader("Retry-After") );
+	}
+	
+	/**
+	 * Classifies an HTTP status code.
+	 * 
+	 * @param code -- http-code, or 0 if there was no response
+	 * @return {@link StatusClass}
+	 */
+	public static StatusClass GET_STATUS_CLASS( int code ) {
+		
+		switch( code / 100 ) {
+			case 1:
+				return StatusClass.INFORMATIONAL;
+			case 2:
+				return StatusClass.SUCCESS;
+			case 3:
+				return StatusClass.REDIRECTION;
+			case 4:
+				return StatusClass.CLIENT_ERROR;
+			case 5:
+				return StatusClass.SERVER_ERROR;
+			default:
+				return StatusClass.NO_RESPONSE;
+		}
+	}
+	
+	/**
+	 * Returns whether an HTTP status code is a success: any 2xx, whatever its reason-phrase (which 
+	 * proxies rewrite and HTTP/2 does not have).
+	 * 
+	 * @param code -- http-code
+	 * @return true if successful
+	 */
+	public static boolean IS_SUCCESS( int code ) {
+		return code >= 200 && code < 300;
+	}
+	
+	/**
+	 * Returns whether a request that got this HTTP status code may succeed if made again later: no 
+	 * response at all (0), 408, 429, and 5xx other than 501/505 (which will not change). Not 403, which 
+	 * on the Realtime Database is a security-rules denial; nor 401, which is only worth one retry after
+	 * the auth-token is refreshed (see {@link #IS_RETRYABLE(int, int)}).
+	 * 
+	 * @param code -- http-code, or 0 if there was no response
+	 * @return true if retryable
+	 */
+	public static boolean IS_RETRYABLE( int code ) {
+		
+		switch( code ) {
+			case 0:
+			case 408:
+			case 429:
+				return true;
+			case 501:
+			case 505:
+				return false;
+			default:
+				return code >= 500 && code < 600;
+		}
+	}
+	
+	/**
+	 * Returns whether a request that got this HTTP status code on the given attempt may succeed if made
+	 * again: as {@link #IS_RETRYABLE(int)}, and also a 401 on the first attempt, since the auth-token is
+	 * refreshed after a 401 (see {@link #IS_AUTH_EXPIRED(int)}); a 401 that outlasts the refresh is a
+	 * denial like any other.
+	 * 
+	 * @param code -- http-code, or 0 if there was no response
+	 * @param attempt -- how many times the request has been made, counting the one that got this code
+	 * @return true if retryable
+	 */
+	public static boolean IS_RETRYABLE( int code, int attempt ) {
+		return FirebaseResponse.IS_RETRYABLE( code ) || (FirebaseResponse.IS_AUTH_EXPIRED( code ) && attempt <= 1);
+	}
+	
+	/**
+	 * Returns whether an HTTP status code means the service is shedding load (429 or 503), so callers
+	 * should slow down rather than just retry.
+	 * 
+	 * @param code -- http-code
+	 * @return true if throttled
+	 */
+	public static boolean IS_THROTTLED( int code ) {
+		return code == 429 || code == 503;
+	}
+	
+	/**
+	 * Returns whether an HTTP status code means the request's credentials were refused (401).
+	 * 
+	 * @param code -- http-code
+	 * @return true if the auth-token should be refreshed
+	 */
+	public static boolean IS_AUTH_EXPIRED( int code ) {
+		return code == 401;
+	}
+	
+	/**
+	 * Parses a 'Retry-After' header given in seconds; the http-date form is not worth supporting here.
+	 * 
+	 * @param retryAfter -- header-value; can be null
+	 * @return milliseconds, or 0 if null or unparseable
+	 */
+	public static long GET_RETRY_AFTER_MILLIS( String retryAfter ) {
+		
+		if( retryAfter == null ) {
+			return 0;
+		}
+		try {
+			return Math.max( 0, Long.parseLong( retryAfter.trim() ) * 1000 );
+		} catch( NumberFormatException e ) {
+			return 0;
+		}
+	}
+	
 	/**
 	 * Returns a map of the data returned by the Firebase-client
 	 * 
+	 * NOTE: if the response is held in compact form, the map is materialized from a {@link CompactJsonTree},
+	 * which keeps object-children sorted by key; so its iteration-order is key-order, not the order of the
+	 * JSON-response (ie: not the order of an 'orderBy' query).
+	 * 
 	 * @return a map of Strings to Objects
 	 */
 	public Map<String, Object> getBody() {
+		
+		if( this.body == null ) {
+			return this.compactBody.toMap();
+		}
 		return this.body;
 	}
 	
 	/**
-	 * Returns the raw data response returned by the Firebase-client
+	 * Returns the data returned by the Firebase-client as a compact, read-only tree; if the response
+	 * was not built with one, it is parsed from the raw-body on first use.
+	 * 
+	 * @return a {@link CompactJsonTree} of the JSON-response from the client
+	 * @throws {@link JacksonUtilityException} if the raw-body could not be parsed
+	 */
+	public CompactJsonTree getCompactBody() throws JacksonUtilityException {
+		
+		CompactJsonTree result = this.compactBody;
+		if( result == null ) {
+			result = new CompactJsonTree( this.rawBody );
+			this.compactBody = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns the raw data response returned by the Firebase-client; if the response is held in compact
+	 * form, it is re-serialized from the tree (in key-order) on every call.
 	 * 
 	 * @return a String of the JSON-response from the client
 	 */
 	public String getRawBody() {
-		return this.rawBody;
+		
+		if( this.rawBody != null ) {
+			return this.rawBody;
+		}
+		try {
+			return JacksonUtility.GET_JSON_STRING_FROM_OBJECT( this.compactBody.get(null) );
+		} catch( JacksonUtilityException jue ) {
+			LOGGER.error( "unable to serialize compact body; returning empty string", jue );
+			return new String();
+		}
+	}
+	
+	/**
+	 * Returns the length of the raw data response returned by the Firebase-client, without re-serializing
+	 * a compact body
+	 * 
+	 * @return the number of characters in the JSON-response from the client
+	 */
+	public int getRawBodyLength() {
+		return this.rawBodyLength;
+	}
+	
+	/**
+	 * Returns the headers returned by the Firebase-client; names are case-insensitive
+	 * 
+	 * @return an unmodifiable map of header-names to values; will not return null
+	 */
+	public Map<String, String> getHeaders() {
+		return this.headers;
+	}
+	
+	/**
+	 * Returns the value of a header returned by the Firebase-client
+	 * 
+	 * @param name -- case-insensitive
+	 * @return the header-value, or null if there was no such header
+	 */
+	public String getHeader( String name ) {
+		return name == null ? null : this.headers.get( name );
+	}
+	
+	/**
+	 * Returns the ETag returned by the Firebase-client; only present if it was requested with the 
+	 * 'X-Firebase-ETag' header
+	 * 
+	 * @return the ETag, or null if there was none
+	 */
+	public String getETag() {
+		return this.getHeader( "ETag" );
 	}
 	
 	@Override
@@ -93,11 +370,53 @@ public class FirebaseResponse {
 		result.append( FirebaseResponse.class.getSimpleName() + "[ " )
 				.append( "(Success:" ).append( this.success ).append( ") " )
 				.append( "(Code:" ).append( this.code ).append( ") " )
-				.append( "(Body:" ).append( this.body ).append( ") " )
-				.append( "(Raw-body:" ).append( this.rawBody ).append( ") " )
+				.append( "(Status:" ).append( this.getStatusClass() ).append( ") " )
+				.append( "(Body:" ).append( this.body != null ? this.body : this.compactBody ).append( ") " )
+				.append( "(Raw-body:" ).append( this.rawBody != null ? this.rawBody : "<compact>" ).append( ") " )
 				.append( "]" );
 		
 		return result.toString();
 	}
 	
+	
+	
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+	
+	
+	private static Map<String, String> buildHeaders( Map<String, String> headers ) {
+		
+		Map<String, String> result = new TreeMap<String, String>( String.CASE_INSENSITIVE_ORDER );
+		if( headers != null ) {
+			result.putAll( headers );
+		}
+		return Collections.unmodifiableMap( result );
+	}
+	
+	
+	
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+	
+	
+	/**
+	 * The class of an HTTP status code, by its first digit.
+	 */
+	public enum StatusClass {
+		
+		NO_RESPONSE,
+		INFORMATIONAL,
+		SUCCESS,
+		REDIRECTION,
+		CLIENT_ERROR,
+		SERVER_ERROR;
+		
+	}
+	
 }
@@ -0,0 +1,22 @@
+package net.thegreshams.firebase4j.service;
+
+/**
+ * Supplies the auth-token a {@link Firebase} adds to each request (as its 'access_token' query-parameter).
+ * 
+ * {@link #getToken()} is called for every request, so it must be cheap and must not block; implementations
+ * that fetch tokens should do so ahead of time (see {@link CachedAuthTokenProvider}).
+ */
+public interface AuthTokenProvider {
+
+	/**
+	 * @return the token to authenticate the next request with, or null to send none
+	 */
+	public String getToken();
+	
+	/**
+	 * Called when the service rejected a request as unauthorized (401); a chance to refresh the token
+	 * early. Must not block.
+	 */
+	public void onAuthFailure();
+	
+}
@@ -0,0 +1,275 @@
+package net.thegreshams.firebase4j.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An {@link AuthTokenProvider} that caches a token fetched from a {@link TokenSource} and refreshes it in the
+ * background before it expires.
+ *
+ * The first token is fetched in the constructor; after that, {@link #getToken()} is only a volatile read.
+ * Refreshes run on a single daemon thread and never overlap. If a refresh fails, the current token keeps being
+ * served and the refresh is retried with backoff. Call {@link #close()} when done to stop the refresh thread.
+ */
+public class CachedAuthTokenProvider implements AuthTokenProvider {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	public static final long				DEFAULT_REFRESH_MARGIN_MILLIS
+																	= TimeUnit.MINUTES.toMillis( 5 );
+
+	private static final long				MIN_RETRY_MILLIS		= 1000;
+
+	private static final long				MAX_RETRY_MILLIS		= TimeUnit.MINUTES.toMillis( 1 );
+
+	/* auth-failures within this long of a refresh are assumed to be for the previous token; nor is a refresh
+	 * ever scheduled sooner than this */
+	private static final long				MIN_REFRESH_INTERVAL_MILLIS
+																	= 5000;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final TokenSource source;
+	private final long refreshMarginMillis;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean refreshing = new AtomicBoolean( false );
+
+	private volatile Token current;
+	private volatile long lastRefreshMillis;
+	private volatile long retryMillis = MIN_RETRY_MILLIS;
+	private volatile ScheduledFuture<?> next;
+
+	public CachedAuthTokenProvider( TokenSource source ) throws FirebaseException {
+		this( source, DEFAULT_REFRESH_MARGIN_MILLIS );
+	}
+
+	/**
+	 * @param source -- fetches tokens
+	 * @param refreshMarginMillis -- how long before expiry to refresh
+	 * @throws {@link FirebaseException} if the first token could not be fetched
+	 */
+	public CachedAuthTokenProvider( TokenSource source, long refreshMarginMillis ) throws FirebaseException {
+
+		if( source == null ) {
+			String msg = "source cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		this.source = source;
+		this.refreshMarginMillis = refreshMarginMillis;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread result = new Thread( r, "firebase4j-token-refresh" );
+				result.setDaemon( true );
+				return result;
+			}
+		});
+
+		this.current = this.fetch();
+		this.lastRefreshMillis = System.currentTimeMillis();
+		this.scheduleRefresh( this.current );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	@Override
+	public String getToken() {
+		return this.current.getValue();
+	}
+
+	/**
+	 * Refreshes the token in the background, unless it was refreshed only moments ago.
+	 */
+	@Override
+	public void onAuthFailure() {
+
+		if( System.currentTimeMillis() - this.lastRefreshMillis >= MIN_REFRESH_INTERVAL_MILLIS ) {
+			LOGGER.info( "auth failure reported; refreshing token early" );
+			this.refreshAsync();
+		}
+	}
+
+	/**
+	 * Refreshes the token in the background; does nothing if a refresh is already running.
+	 */
+	public void refreshAsync() {
+
+		if( this.refreshing.get() || this.scheduler.isShutdown() ) {
+			return;
+		}
+		this.scheduler.execute( new Runnable() {
+			@Override
+			public void run() {
+				CachedAuthTokenProvider.this.refresh();
+			}
+		});
+	}
+
+	/**
+	 * Returns the time the current token expires.
+	 *
+	 * @return milliseconds since the epoch
+	 */
+	public long getExpiresAtMillis() {
+		return this.current.getExpiresAtMillis();
+	}
+
+	/**
+	 * Stops refreshing; the last token is still returned by {@link #getToken()}.
+	 */
+	public void close() {
+		this.scheduler.shutdownNow();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private Token fetch() throws FirebaseException {
+
+		Token result = this.source.fetch();
+		if( result == null || result.getValue() == null ) {
+			String msg = "token-source returned no token";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		return result;
+	}
+
+	private void refresh() {
+
+		// only one refresh at a time
+		if( !this.refreshing.compareAndSet( false, true ) ) {
+			return;
+		}
+
+		try {
+
+			Token token = this.fetch();
+			this.current = token;
+			this.lastRefreshMillis = System.currentTimeMillis();
+			this.retryMillis = MIN_RETRY_MILLIS;
+			LOGGER.info( "refreshed token; expires at " + token.getExpiresAtMillis() );
+			this.scheduleRefresh( token );
+
+		} catch( Throwable t ) {
+
+			long retry = this.retryMillis;
+			this.retryMillis = Math.min( MAX_RETRY_MILLIS, retry * 2 );
+			LOGGER.error( "unable to refresh token; retrying in " + retry + "ms", t );
+			this.schedule( retry );
+
+		} finally {
+
+			this.refreshing.set( false );
+
+		}
+	}
+
+	private void scheduleRefresh( Token token ) {
+
+		long now = System.currentTimeMillis();
+		long delayMillis = token.getExpiresAtMillis() - this.refreshMarginMillis - now;
+
+		// a token that lives no longer than the margin would otherwise be refetched in a tight loop
+		if( delayMillis < MIN_REFRESH_INTERVAL_MILLIS ) {
+			long ttlMillis = token.getExpiresAtMillis() - now;
+			delayMillis = Math.max( MIN_REFRESH_INTERVAL_MILLIS, ttlMillis / 2 );
+			LOGGER.warn( "token expires in " + ttlMillis + "ms, within the refresh-margin of " + this.refreshMarginMillis
+					+ "ms; refreshing in " + delayMillis + "ms" );
+		}
+		this.schedule( delayMillis );
+	}
+
+	private void schedule( long delayMillis ) {
+
+		if( this.scheduler.isShutdown() ) {
+			return;
+		}
+
+		// replace any refresh already scheduled, so an early refresh doesn't start a second chain
+		ScheduledFuture<?> previous = this.next;
+		if( previous != null ) {
+			previous.cancel( false );
+		}
+		this.next = this.scheduler.schedule( new Runnable() {
+			@Override
+			public void run() {
+				CachedAuthTokenProvider.this.refresh();
+			}
+		}, Math.max( 0, delayMillis ), TimeUnit.MILLISECONDS );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Fetches a new token (ie: by exchanging a refresh-token or signing a custom-token).
+	 */
+	public interface TokenSource {
+
+		public Token fetch() throws FirebaseException;
+	}
+
+	/**
+	 * A token and when it expires.
+	 */
+	public static class Token {
+
+		private final String value;
+		private final long expiresAtMillis;
+
+		/**
+		 * @param value -- the token
+		 * @param expiresAtMillis -- milliseconds since the epoch
+		 */
+		public Token( String value, long expiresAtMillis ) {
+			this.value = value;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		public long getExpiresAtMillis() {
+			return this.expiresAtMillis;
+		}
+	}
+
+}
@@ -1,36 +1,65 @@
 package net.thegreshams.firebase4j.service;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.thegreshams.firebase4j.error.FirebaseException;
 import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.CompactJsonTree;
+import net.thegreshams.firebase4j.model.FirebaseBulkResponse;
 import net.thegreshams.firebase4j.model.FirebaseResponse;
 import net.thegreshams.firebase4j.util.JacksonUtility;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+import net.thegreshams.firebase4j.util.ServerValue;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 
@@ -41,6 +70,38 @@ public class Firebase {
 	public static final String				FIREBASE_API_JSON_EXTENSION
 																	= ".json";
 	
+	public static final int					MAX_CONNECTIONS			= 100;
+	
+	public static final int					DEFAULT_BULK_CONCURRENCY
+																	= 16;
+	
+	public static final int					TRANSACTION_MAX_RETRIES	= 25;
+	
+	private static final long				TRANSACTION_BACKOFF_MILLIS
+																	= 10;
+	
+	private static final long				TRANSACTION_MAX_BACKOFF_MILLIS
+																	= 1000;
+	
+	private static final Random				RANDOM					= new Random();
+	
+	/* the order of keys under orderBy="$key", and of ties under any other orderBy: 32-bit integer keys
+	 * numerically, then the rest as strings */
+	public static final Comparator<String>	KEY_ORDER				= new Comparator<String>() {
+		@Override
+		public int compare( String a, String b ) {
+			Integer ia = Firebase.parseIntKey( a );
+			Integer ib = Firebase.parseIntKey( b );
+			if( ia != null && ib != null ) {
+				return ia.compareTo( ib );
+			}
+			if( ia != null || ib != null ) {
+				return ia != null ? -1 : 1;
+			}
+			return a.compareTo( b );
+		}
+	};
+	
 
 	
 ///////////////////////////////////////////////////////////////////////////////
@@ -51,9 +112,22 @@ public class Firebase {
 	
 	
 	private final String baseUrl;
-	private String secureToken = null;
+	private AuthTokenProvider authTokenProvider = null;
 	private List<NameValuePair> query;
+	private final List<Header> headers = new ArrayList<Header>();
 	private Boolean useJsonExt = true;
+	private boolean compactBody = false;
+	private boolean singleFlight = false;
+	private final SingleFlightGroup singleFlightGroup = new SingleFlightGroup();
+	private volatile RequestGovernor governor = null;
+	private final CloseableHttpClient httpClient = Firebase.buildHttpClient();
+	private volatile FirebaseReference rootReference = null;
+	private int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+	private long maxResponseBytes = 0;
+	private long nextMaxResponseBytes = 0;
+	private ExecutorService bulkExecutor = null;
+	private final List<RequestInterceptor> interceptors = new CopyOnWriteArrayList<RequestInterceptor>();
+	private volatile boolean printSilent = false;
 
 	public Firebase( String baseUrl ) throws FirebaseException {
 
@@ -79,12 +153,23 @@ public class Firebase {
 	}
 
 	public Firebase(String baseUrl, String secureToken) throws FirebaseException {
+		this( baseUrl, secureToken != null ? new StaticAuthTokenProvider( secureToken ) : null );
+	}
+
+	/**
+	 * Overloaded constructor for tokens that change over time (ie: expiring ID-tokens); the provider is
+	 * asked for the current token on every request.
+	 * @param baseUrl
+	 * @param authTokenProvider -- if null, no token is sent
+	 * @throws FirebaseException
+	 */
+	public Firebase(String baseUrl, AuthTokenProvider authTokenProvider) throws FirebaseException {
 		if( baseUrl == null || baseUrl.trim().isEmpty() ) {
 			String msg = "baseUrl cannot be null or empty; was: '" + baseUrl + "'";
 			LOGGER.error( msg );
 			throw new FirebaseException( msg );
 		}
-		this.secureToken = secureToken;
+		this.authTokenProvider = authTokenProvider;
 		this.baseUrl = baseUrl.trim();
 		query = new ArrayList<NameValuePair>();
 		LOGGER.info( "intialized with base-url: " + this.baseUrl );
@@ -121,17 +206,197 @@ public class Firebase {
 	 */
 	public FirebaseResponse get( String path ) throws FirebaseException, UnsupportedEncodingException {
 		
-		// make the request
 		String url = this.buildFullUrlFromRelativePath( path );
-		HttpGet request = new HttpGet( url );
-		HttpResponse httpResponse = this.makeRequest( request );
+		FirebaseResponse response = this.getFromUrl( url, this.headers, this.getResponseLimit() );
+		this.clearQueryAndHeaders();
+		
+		return response;
+	}
+	
+	/**
+	 * GETs data from the provided-path relative to the base-url, copying the response-body as it arrives
+	 * into the provided stream instead of holding it in memory; meant for results too large to hold. 
+	 * Only the per-request limit ({@link #limitNextResponse(long)}) applies, not the per-instance one.
+	 * 
+	 * If the request is unsuccessful, nothing is written to the stream; the response's body holds the 
+	 * error instead, as for {@link #get(String)}.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param out -- receives the response-body; it is not closed
+	 * @return {@link FirebaseResponse} -- with an empty body, if successful
+	 * @throws UnsupportedEncodingException 
+	 * @throws {@link FirebaseException} if the request failed, or the response-body could not be copied
+	 */
+	public FirebaseResponse getToStream( String path, OutputStream out ) throws FirebaseException, UnsupportedEncodingException {
+		
+		if( out == null ) {
+			String msg = "out cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
 		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.GET, httpResponse );
+		String url = this.buildFullUrlFromRelativePath( path );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.GET, new HttpGet(url), this.headers, this.nextMaxResponseBytes, out );
+		this.clearQueryAndHeaders();
+		
+		return response;
+	}
+	
+	/**
+	 * GETs data from the provided-path relative to the base-url into the provided file; see 
+	 * {@link #getToStream(String, OutputStream)}. The file is only left in place if the request is 
+	 * successful and its body was copied in full.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param file -- created, or overwritten
+	 * @return {@link FirebaseResponse} -- with an empty body, if successful
+	 * @throws UnsupportedEncodingException 
+	 * @throws {@link FirebaseException} if the request failed, or the file could not be written
+	 */
+	public FirebaseResponse getToFile( String path, File file ) throws FirebaseException, UnsupportedEncodingException {
+		
+		if( file == null ) {
+			String msg = "file cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		
+		FirebaseResponse response = null;
+		OutputStream out = null;
+		try {
+			
+			out = new FileOutputStream( file );
+			response = this.getToStream( path, out );
+			out.close();
+			out = null;
+			
+		} catch( IOException e ) {
+			
+			String msg = "unable to write response-body to file: " + file;
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+			
+		} finally {
+			
+			if( out != null ) {
+				try {
+					out.close();
+				} catch( IOException e ) {
+					LOGGER.warn( "unable to close file: " + file, e );
+				}
+			}
+			if( response == null || !response.getSuccess() ) {
+				file.delete();
+			}
+			
+		}
 		
 		return response;
 	}
 	
+	/**
+	 * GETs data from many paths relative to the base-url at once; see {@link #getMany(Collection, boolean)}.
+	 * 
+	 * @param paths -- if a path is null/empty, it refers to the base-url
+	 * @return {@link FirebaseBulkResponse}
+	 * @throws {@link FirebaseException} 
+	 */
+	public FirebaseBulkResponse getMany( Collection<String> paths ) throws FirebaseException {
+		return this.getMany( paths, false );
+	}
+	
+	/**
+	 * GETs data from many paths relative to the base-url at once, in parallel (up to the bulk-concurrency), 
+	 * so the batch takes about as long as its slowest read rather than the sum of them. Any query or headers 
+	 * added for the next request apply to every read in the batch.
+	 * 
+	 * If asked to, paths that share a parent are merged into one read of the parent, filtered to the range 
+	 * of their keys (orderBy="$key" with startAt/endAt). That is one round-trip instead of many, but also 
+	 * returns any other children whose keys fall in the range, so is best for dense ranges of keys. If a 
+	 * merged read is refused (ie: the rules allow reading the children but not the parent), its paths are 
+	 * read one by one instead. Siblings are not merged when a query was added.
+	 * 
+	 * @param paths -- if a path is null/empty, it refers to the base-url
+	 * @param mergeSiblings -- true to merge siblings into one read of their parent
+	 * @return {@link FirebaseBulkResponse} -- keyed by the paths as provided; a path whose read failed is 
+	 * 			in its failures rather than its responses
+	 * @throws {@link FirebaseException} if paths is null, or the wait for the batch was interrupted
+	 */
+	public FirebaseBulkResponse getMany( Collection<String> paths, boolean mergeSiblings ) throws FirebaseException {
+		
+		if( paths == null ) {
+			String msg = "paths cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		
+		// the query and headers for the next request apply to the whole batch
+		List<NameValuePair> query = new ArrayList<NameValuePair>( this.query );
+		List<Header> headers = new ArrayList<Header>( this.headers );
+		long maxResponseBytes = this.getResponseLimit();
+		this.clearQueryAndHeaders();
+		
+		// plan the reads (once per distinct path), merging siblings if asked to
+		Map<String, BulkRead> byParent = new LinkedHashMap<String, BulkRead>();
+		List<BulkRead> reads = new ArrayList<BulkRead>();
+		Set<String> distinct = new LinkedHashSet<String>();
+		for( String path : paths ) {
+			distinct.add( Firebase.normalizePath(path) );
+		}
+		for( String path : distinct ) {
+			
+			int slash = path.lastIndexOf( '/' );
+			if( !mergeSiblings || !query.isEmpty() || path.isEmpty() ) {
+				reads.add( new BulkRead( path ) );
+				continue;
+			}
+			
+			String parent = slash < 0 ? "" : path.substring( 0, slash );
+			BulkRead read = byParent.get( parent );
+			if( read == null ) {
+				read = new BulkRead( parent, new ArrayList<String>() );
+				byParent.put( parent, read );
+			}
+			read.keys.add( path.substring(slash + 1) );
+		}
+		for( BulkRead read : byParent.values() ) {
+			reads.add( read.keys.size() > 1 ? read : new BulkRead( read.getChildPath(0) ) );
+		}
+		
+		// read them, then re-read one by one the paths of any merged read that was refused
+		Map<String, FirebaseResponse> responses = new ConcurrentHashMap<String, FirebaseResponse>();
+		Map<String, Throwable> failures = new ConcurrentHashMap<String, Throwable>();
+		List<BulkRead> refused = Collections.synchronizedList( new ArrayList<BulkRead>() );
+		int requestCount = reads.size();
+		this.readAll( reads, query, headers, maxResponseBytes, responses, failures, refused );
+		if( !refused.isEmpty() ) {
+			
+			List<BulkRead> retries = new ArrayList<BulkRead>();
+			for( BulkRead read : refused ) {
+				for( int i = 0; i < read.keys.size(); i++ ) {
+					retries.add( new BulkRead( read.getChildPath(i) ) );
+				}
+			}
+			LOGGER.info( "re-reading " + retries.size() + " paths of " + refused.size() + " refused merged reads" );
+			requestCount += retries.size();
+			this.readAll( retries, query, headers, maxResponseBytes, responses, failures, null );
+		}
+		
+		// put the results back in the order asked for
+		Map<String, FirebaseResponse> orderedResponses = new LinkedHashMap<String, FirebaseResponse>();
+		Map<String, Throwable> orderedFailures = new LinkedHashMap<String, Throwable>();
+		for( String path : paths ) {
+			String normalized = Firebase.normalizePath( path );
+			if( responses.containsKey( normalized ) ) {
+				orderedResponses.put( path, responses.get(normalized) );
+			} else if( failures.containsKey( normalized ) ) {
+				orderedFailures.put( path, failures.get(normalized) );
+			}
+		}
+		
+		return new FirebaseBulkResponse( orderedResponses, orderedFailures, requestCount );
+	}
+	
 	/**
 	 * PATCHs data to the base-url
 	 * 
@@ -163,10 +428,7 @@ public class Firebase {
 		//HttpPut request = new HttpPut( url );
 		HttpPatch request = new HttpPatch(url);
 		request.setEntity( this.buildEntityFromDataMap( data ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-				
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.PATCH, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.PATCH, request );
 				
 		return response;
 	}
@@ -197,10 +459,7 @@ public class Firebase {
 		String url = this.buildFullUrlFromRelativePath( path );
 		HttpPatch request = new HttpPatch( url );
 		request.setEntity( this.buildEntityFromJsonData( jsonData ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-				
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.PATCH, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.PATCH, request );
 				
 		return response;		
 	}
@@ -238,10 +497,7 @@ public class Firebase {
 		String url = this.buildFullUrlFromRelativePath( path );
 		HttpPut request = new HttpPut( url );
 		request.setEntity( this.buildEntityFromDataMap( data ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.PUT, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.PUT, request );
 		
 		return response;
 	}
@@ -277,10 +533,7 @@ public class Firebase {
 		String url = this.buildFullUrlFromRelativePath( path );
 		HttpPut request = new HttpPut( url );
 		request.setEntity( this.buildEntityFromJsonData( jsonData ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.PUT, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.PUT, request );
 		
 		return response;		
 	}
@@ -324,10 +577,7 @@ public class Firebase {
 		String url = this.buildFullUrlFromRelativePath( path );
 		HttpPost request = new HttpPost( url );
 		request.setEntity( this.buildEntityFromDataMap( data ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.POST, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.POST, request );
 		
 		return response;
 	}
@@ -369,14 +619,94 @@ public class Firebase {
 		String url = this.buildFullUrlFromRelativePath( path );
 		HttpPost request = new HttpPost( url );
 		request.setEntity( this.buildEntityFromJsonData( jsonData ) );
-		HttpResponse httpResponse = this.makeRequest( request );
-		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.POST, httpResponse );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.POST, request );
 		
 		return response;
 	}
 	
+	/**
+	 * Inserts many records under the provided-path relative to the base-url, each under a push-id generated
+	 * on the client (see {@link PushIdGenerator}), as one PATCH rather than one POST per record. The ids
+	 * sort in the order of the records, the same as if they had been POSTed one after another.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param records -- Maps, Lists, Strings, Numbers, Booleans or {@link ServerValue}s; cannot be null/empty
+	 * @return {@link FirebaseResponse} -- on success, its body maps each generated push-id to its record
+	 * @throws UnsupportedEncodingException 
+	 * @throws {@link JacksonUtilityException}
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse pushAll( String path, List<?> records ) throws JacksonUtilityException, FirebaseException, UnsupportedEncodingException {
+		
+		if( records == null || records.isEmpty() ) {
+			String msg = "records cannot be null or empty";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		
+		// key every record up-front, so the whole batch is one multi-path update
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		for( Object record : records ) {
+			data.put( PushIdGenerator.NEXT_PUSH_ID(), record );
+		}
+		
+		return this.patch( path, data );
+	}
+	
+	/**
+	 * Returns a reference to the base-url; references are immutable, cheap, and share this Firebase's
+	 * connections and configuration.
+	 * 
+	 * @return {@link FirebaseReference}
+	 */
+	public FirebaseReference getReference() {
+		
+		// racing threads may each build one, which is harmless since references are immutable
+		FirebaseReference result = this.rootReference;
+		if( result == null ) {
+			result = new FirebaseReference( this, this.baseUrl );
+			this.rootReference = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns a reference to the provided-path relative to the base-url.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @return {@link FirebaseReference}
+	 */
+	public FirebaseReference child( String path ) {
+		return this.getReference().child( path );
+	}
+	
+	/**
+	 * Releases the connections held by this Firebase (and so by its references); it should not be used
+	 * afterwards.
+	 */
+	public void close() {
+		
+		synchronized( this ) {
+			if( this.bulkExecutor != null ) {
+				this.bulkExecutor.shutdownNow();
+			}
+		}
+		try {
+			this.httpClient.close();
+		} catch( IOException e ) {
+			LOGGER.warn( "unable to close http-client", e );
+		}
+	}
+	
+	/**
+	 * Returns the base-url.
+	 * 
+	 * @return the base-url
+	 */
+	public String getBaseUrl() {
+		return this.baseUrl;
+	}
+	
 	/**
 	 * Append a query to the request.
 	 * 
@@ -391,116 +721,809 @@ public class Firebase {
 	}
 	
 	/**
-	 * DELETEs data from the base-url.
+	 * Add a header to the request.
 	 * 
-	 * @return {@link FirebaseResponse}
+	 * @param name -- header name (ie: 'X-Firebase-ETag')
+	 * @param value -- header value
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase addHeader( String name, String value ) {
+		this.headers.add( new BasicHeader( name, value ) );
+		return this;
+	}
+	
+	/**
+	 * Limit the size of the next request's response-body, overriding {@link #setMaxResponseBytes(long)}
+	 * for that request only.
+	 * 
+	 * @param maxBytes -- if zero/negative, the per-instance limit applies
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase limitNextResponse( long maxBytes ) {
+		this.nextMaxResponseBytes = maxBytes;
+		return this;
+	}
+	
+	/**
+	 * Atomically updates the data at the provided-path relative to the base-url, using the ETag of the
+	 * data as a compare-and-set; see {@link #transaction(String, TransactionHandler, int)}.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param handler -- computes the new data from the current data
+	 * @return {@link FirebaseResponse} of the successful write (or of the read, if the handler aborted)
 	 * @throws UnsupportedEncodingException 
-	 * @throws {@link FirebaseException}
+	 * @throws {@link FirebaseException} if the transaction could not be completed within {@link #TRANSACTION_MAX_RETRIES}
 	 */
-	public FirebaseResponse delete() throws FirebaseException, UnsupportedEncodingException {
-		return this.delete( null );
+	public FirebaseResponse transaction( String path, TransactionHandler handler ) throws FirebaseException, UnsupportedEncodingException {
+		return this.transaction( path, handler, TRANSACTION_MAX_RETRIES );
 	}
-
+	
 	/**
-	 * DELETEs data from the provided-path relative to the base-url.
+	 * Atomically updates the data at the provided-path relative to the base-url, using the ETag of the
+	 * data as a compare-and-set.
+	 * 
+	 * The current data is read along with its ETag, the handler computes the new data, and that is PUT 
+	 * conditionally on the ETag being unchanged. If another client changed the data in the meantime, the 
+	 * service answers 412 with the now-current data and ETag; the handler is called again with that and 
+	 * the PUT retried, after a short randomized backoff.
+	 * 
+	 * Headers added for the next request (see {@link #addHeader(String, String)}) go with every request of
+	 * the transaction; a query added for it is ignored, since it would change what is read and written.
 	 * 
 	 * @param path -- if null/empty, refers to the base-url
-	 * @return {@link FirebaseResponse}
+	 * @param handler -- computes the new data from the current data
+	 * @param maxRetries -- the number of conflicting attempts to retry before giving up
+	 * @return {@link FirebaseResponse} of the successful write (or of the read, if the handler aborted); 
+	 * 			if the service fails the write for any reason other than a conflict, that response
 	 * @throws UnsupportedEncodingException 
-	 * @throws {@link FirebaseException}
+	 * @throws {@link FirebaseException} if the transaction could not be completed within maxRetries
 	 */
-	public FirebaseResponse delete( String path ) throws FirebaseException, UnsupportedEncodingException {
+	public FirebaseResponse transaction( String path, TransactionHandler handler, int maxRetries ) throws FirebaseException, UnsupportedEncodingException {
 		
-		// make the request
-		String url = this.buildFullUrlFromRelativePath( path );
-		HttpDelete request = new HttpDelete( url );
-		HttpResponse httpResponse = this.makeRequest( request );
+		if( handler == null ) {
+			String msg = "handler cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
 		
-		// process the response
-		FirebaseResponse response = this.processResponse( FirebaseRestMethod.DELETE, httpResponse );
+		// the caller's headers and response-limit go with every request of the transaction; a pending query
+		// (ie: 'shallow', 'orderBy', 'print') would change what is read and written, so it is dropped
+		List<Header> headers = new ArrayList<Header>( this.headers );
+		long maxResponseBytes = this.getResponseLimit();
+		if( !this.query.isEmpty() ) {
+			LOGGER.warn( "transaction ignores the pending query " + this.query );
+		}
+		this.clearQueryAndHeaders();
 		
-		return response;
-	}
-	
-	
-	
-///////////////////////////////////////////////////////////////////////////////
-//
-// PRIVATE API
-//
-///////////////////////////////////////////////////////////////////////////////
-	
-	
-	private StringEntity buildEntityFromDataMap( Map<String, Object> dataMap ) throws FirebaseException, JacksonUtilityException {
+		// the url is rebuilt for every request, so a token refreshed in the meantime is used
+		String normalized = Firebase.normalizePath( path );
+		String url = normalized.isEmpty() ? this.baseUrl : this.baseUrl + "/" + normalized;
+		List<NameValuePair> noQuery = Collections.<NameValuePair>emptyList();
 		
-		String jsonData = JacksonUtility.GET_JSON_STRING_FROM_MAP( dataMap );
+		// read the current data and its ETag
+		HttpGet read = new HttpGet( this.buildFullUrlFromPrefix(url, noQuery) );
+		read.addHeader( "X-Firebase-ETag", "true" );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.GET, read, headers, maxResponseBytes, null );
 		
-		return this.buildEntityFromJsonData( jsonData );
-	}
-	
-	private StringEntity buildEntityFromJsonData( String jsonData ) throws FirebaseException {
-
-		StringEntity result = null;
-		try {
+		for( int attempt = 0; attempt <= maxRetries; attempt++ ) {
 			
-			result = new StringEntity( jsonData , "UTF-8" );
+			if( !response.getSuccess() && response.getCode() != 412 ) {
+				return response;
+			}
+			String etag = response.getETag();
+			if( etag == null ) {
+				String msg = "no ETag returned for '" + url + "'; cannot run transaction";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg );
+			}
 			
-		} catch( Throwable t ) {
+			// compute the next data
+			Object current = null;
+			try {
+				current = this.compactBody
+						? response.getCompactBody().get( null )
+						: JacksonUtility.GET_JSON_STRING_AS_OBJECT( response.getRawBody() );
+			} catch( JacksonUtilityException jue ) {
+				throw new FirebaseException( "unable to read current data for transaction @ " + url, jue );
+			}
+			Object next = handler.apply( current );
+			if( next == TransactionHandler.ABORT ) {
+				LOGGER.info( "transaction aborted by handler @ " + url );
+				return response;
+			}
 			
-			String msg = "unable to create entity from data; data was: " + jsonData;
-			LOGGER.error( msg );
-			throw new FirebaseException( msg, t );
+			// write it, if nobody else has in the meantime
+			HttpPut write = new HttpPut( this.buildFullUrlFromPrefix(url, noQuery) );
+			write.addHeader( "if-match", etag );
+			write.addHeader( "X-Firebase-ETag", "true" );
+			try {
+				write.setEntity( this.buildEntityFromJsonData( JacksonUtility.GET_JSON_STRING_FROM_OBJECT( next ) ) );
+			} catch( JacksonUtilityException jue ) {
+				throw new FirebaseException( "unable to write data for transaction @ " + url, jue );
+			}
+			response = this.execute( FirebaseRestMethod.PUT, write, headers, maxResponseBytes, null );
+			if( response.getCode() != 412 ) {
+				return response;
+			}
 			
+			// conflict; the 412 carries the now-current data and ETag, so go again with it at once; after 
+			// repeated conflicts back off first, then re-read since that data will have gone stale meanwhile
+			LOGGER.info( "transaction conflicted on attempt " + (attempt + 1) + " @ " + url );
+			if( attempt > 0 ) {
+				this.sleepBeforeRetry( attempt - 1 );
+				HttpGet reread = new HttpGet( this.buildFullUrlFromPrefix(url, noQuery) );
+				reread.addHeader( "X-Firebase-ETag", "true" );
+				response = this.execute( FirebaseRestMethod.GET, reread, headers, maxResponseBytes, null );
+			}
 		}
 		
-		return result;
+		String msg = "transaction did not complete within " + maxRetries + " retries @ " + url;
+		LOGGER.error( msg );
+		throw new FirebaseException( msg );
 	}
 	
-	private String buildFullUrlFromRelativePath( String path ) throws UnsupportedEncodingException {
-		
-		// massage the path (whether it's null, empty, or not) into a full URL
-		if( path == null ) {
-			path = "";
-		}
-		path = path.trim();
-		if( !path.isEmpty() && !path.startsWith( "/" ) ) {
-			path = "/" + path;
-		}
-
-		String url = this.baseUrl + path;
-
-		if(useJsonExt) url += Firebase.FIREBASE_API_JSON_EXTENSION;
-		
-		if(query != null) {
-			url += "?";
-			Iterator<NameValuePair> it = query.iterator();
-			NameValuePair e;
-			while(it.hasNext()) {
-				e = it.next();
-				url += e.getName() + "=" + URLEncoder.encode(e.getValue(), "UTF-8") + "&";
-			}
-		}
-		
-		if(secureToken != null) {
-			if(query != null) {
-				url += "access_token=" + secureToken;
-			} else {
-				url += "?access_token=" + secureToken;
-			}
-		}
-		
-		if(url.lastIndexOf("&") == url.length()) {
-			StringBuilder str = new StringBuilder(url);
-			str.deleteCharAt(str.length());
-			url = str.toString();
-		}
-		
-		LOGGER.info( "built full url to '" + url + "' using relative-path of '" + path + "'" );
+	/**
+	 * Keep response-bodies as a {@link CompactJsonTree} instead of a map; intended for large reads that
+	 * are held onto, since the tree takes a fraction of the memory. {@link FirebaseResponse#getBody()}
+	 * still works, but builds a new map on every call.
+	 * 
+	 * @param compactBody -- true to keep response-bodies in compact form
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase setCompactBody( boolean compactBody ) {
+		this.compactBody = compactBody;
+		return this;
+	}
+	
+	/**
+	 * Collapse concurrent GETs of an identical url (path, query and auth), with identical headers and 
+	 * response-limit, into a single request whose response is shared by every caller; since the response
+	 * is shared, callers should treat it as read-only. See {@link #getSingleFlight()} for how many calls
+	 * were collapsed.
+	 * 
+	 * @param singleFlight -- true to collapse concurrent identical GETs
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase setSingleFlight( boolean singleFlight ) {
+		this.singleFlight = singleFlight;
+		return this;
+	}
+	
+	/**
+	 * Returns the group that collapses concurrent identical GETs, along with its counters.
+	 * 
+	 * @return {@link SingleFlightGroup}
+	 */
+	
+	public SingleFlightGroup getSingleFlight() {
+		return this.singleFlightGroup;
+	}
+	
+	/**
+	 * Govern the requests of this Firebase (request-rate, byte-rate and concurrency) so bursts stay under
+	 * the service's limits; the same governor may be shared by several Firebase objects.
+	 * 
+	 * @param governor -- if null, requests are not governed
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase setGovernor( RequestGovernor governor ) {
+		this.governor = governor;
+		return this;
+	}
+	
+	/**
+	 * Returns the governor of this Firebase's requests.
+	 * 
+	 * @return {@link RequestGovernor}, or null if requests are not governed
+	 */
+	
+	public RequestGovernor getGovernor() {
+		return this.governor;
+	}
+	
+	/**
+	 * Limit the size of every response-body read into memory, so an accidental read of a large subtree 
+	 * fails instead of exhausting the heap (default: unlimited). A response whose Content-Length is over 
+	 * the limit fails without being read, and one without is abandoned once the limit is passed; either 
+	 * way a {@link FirebaseException} is thrown and the connection is closed rather than drained.
+	 * 
+	 * @param maxResponseBytes -- if zero/negative, response-bodies are unlimited
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase setMaxResponseBytes( long maxResponseBytes ) {
+		this.maxResponseBytes = maxResponseBytes;
+		return this;
+	}
+	
+	/**
+	 * Returns the most bytes of response-body held in memory for a request.
+	 * 
+	 * @return the limit, or zero/negative if unlimited
+	 */
+	
+	public long getMaxResponseBytes() {
+		return this.maxResponseBytes;
+	}
+	
+	/**
+	 * The most reads of one {@link #getMany(Collection, boolean)} that are in flight at once (default: 
+	 * {@link #DEFAULT_BULK_CONCURRENCY}); a governor, if any, still applies to each of them.
+	 * 
+	 * @param bulkConcurrency -- at least 1
+	 * @return Firebase -- return this Firebase object
+	 */
+	
+	public Firebase setBulkConcurrency( int bulkConcurrency ) {
+		this.bulkConcurrency = Math.max( 1, bulkConcurrency );
+		return this;
+	}
+	
+	/**
+	 * Add an interceptor to be called around every request of this Firebase (and its references), after
+	 * those already added.
+	 * 
+	 * @param interceptor -- to add
+	 * @return Firebase -- return this Firebase object
+	 */
+	public Firebase addInterceptor( RequestInterceptor interceptor ) {
+		if( interceptor != null ) {
+			this.interceptors.add( interceptor );
+		}
+		return this;
+	}
+	
+	/**
+	 * Remove an interceptor added with {@link #addInterceptor(RequestInterceptor)}.
+	 * 
+	 * @param interceptor -- to remove
+	 * @return Firebase -- return this Firebase object
+	 */
+	public Firebase removeInterceptor( RequestInterceptor interceptor ) {
+		this.interceptors.remove( interceptor );
+		return this;
+	}
+	
+	/**
+	 * Ask the service not to echo written data back: writes are sent with 'print=silent' and answered 
+	 * with 204 and no body, which still counts as success (default: false). Saves the response bandwidth
+	 * and parsing of write-heavy callers that don't look at what they wrote. Conditional writes (those
+	 * with an 'if-match' header, as made by {@link #transaction(String, TransactionHandler)}) are not 
+	 * silenced, since a conflict's body carries the current data. A silent POST does not return the key
+	 * it was stored under; use {@link FirebaseReference#push()} to know the key beforehand.
+	 * 
+	 * @param printSilent -- true to send writes with 'print=silent'
+	 * @return Firebase -- return this Firebase object
+	 */
+	public Firebase setPrintSilent( boolean printSilent ) {
+		this.printSilent = printSilent;
+		return this;
+	}
+	
+	/**
+	 * DELETEs data from the base-url.
+	 * 
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException 
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse delete() throws FirebaseException, UnsupportedEncodingException {
+		return this.delete( null );
+	}
+
+	/**
+	 * DELETEs data from the provided-path relative to the base-url.
+	 * 
+	 * @param path -- if null/empty, refers to the base-url
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException 
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse delete( String path ) throws FirebaseException, UnsupportedEncodingException {
+		
+		// make the request
+		String url = this.buildFullUrlFromRelativePath( path );
+		HttpDelete request = new HttpDelete( url );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.DELETE, request );
+		
+		return response;
+	}
+	
+	
+	
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+	
+	
+	/* makes a request against a precomputed url-prefix; used by FirebaseReference */
+	FirebaseResponse request( FirebaseRestMethod method, String urlPrefix, String jsonData ) throws FirebaseException, UnsupportedEncodingException {
+		
+		String url = this.buildFullUrlFromPrefix( urlPrefix );
+		
+		HttpEntityEnclosingRequestBase request = null;
+		switch( method ) {
+			case GET:
+				FirebaseResponse response = this.getFromUrl( url, this.headers, this.getResponseLimit() );
+				this.clearQueryAndHeaders();
+				return response;
+			case DELETE:
+				return this.execute( method, new HttpDelete( url ) );
+			case PATCH:
+				request = new HttpPatch( url );
+				break;
+			case PUT:
+				request = new HttpPut( url );
+				break;
+			default:
+				request = new HttpPost( url );
+				break;
+		}
+		request.setEntity( this.buildEntityFromJsonData( jsonData ) );
+		
+		return this.execute( method, request );
+	}
+	
+	/* reads into the sink, neither using nor clearing the query and headers for the next request, so is safe
+	 * to call from background threads; used by FirebasePoller */
+	FirebaseResponse readIsolated( String path, List<Header> headers, OutputStream sink ) throws FirebaseException, UnsupportedEncodingException {
+		
+		String normalized = Firebase.normalizePath( path );
+		String url = this.buildFullUrlFromPrefix( normalized.isEmpty() ? this.baseUrl : this.baseUrl + "/" + normalized, 
+				Collections.<NameValuePair>emptyList() );
+		
+		return this.execute( FirebaseRestMethod.GET, new HttpGet( url ), headers, this.maxResponseBytes, sink );
+	}
+	
+	/* makes a write that neither uses nor clears the query and headers for the next request, so is safe to
+	 * call from background threads; used by WriteAheadQueue and OrderedWriteStream */
+	FirebaseResponse writeIsolated( FirebaseRestMethod method, String path, String jsonData ) throws FirebaseException, UnsupportedEncodingException {
+		
+		String normalized = Firebase.normalizePath( path );
+		String url = this.buildFullUrlFromPrefix( normalized.isEmpty() ? this.baseUrl : this.baseUrl + "/" + normalized, 
+				Collections.<NameValuePair>emptyList() );
+		
+		HttpRequestBase request = null;
+		switch( method ) {
+			case DELETE:
+				request = new HttpDelete( url );
+				break;
+			case PATCH:
+				request = new HttpPatch( url );
+				break;
+			case PUT:
+				request = new HttpPut( url );
+				break;
+			case POST:
+				request = new HttpPost( url );
+				break;
+			default:
+				String msg = "not a write: " + method;
+				LOGGER.error( msg );
+				throw new FirebaseException( msg );
+		}
+		if( request instanceof HttpEntityEnclosingRequestBase ) {
+			((HttpEntityEnclosingRequestBase) request).setEntity( this.buildEntityFromJsonData( jsonData ) );
+		}
+		
+		return this.execute( method, request, Collections.<Header>emptyList(), this.maxResponseBytes, null );
+	}
+	
+	private FirebaseResponse getFromUrl( final String url, final List<Header> headers, final long maxResponseBytes ) throws FirebaseException {
+		
+		// share the response of an identical GET already in flight, if asked to; the headers and response-limit
+		// are part of what makes it identical, since they change the response (ie: X-Firebase-ETag)
+		if( this.singleFlight ) {
+			StringBuilder key = new StringBuilder( url ).append( '\n' ).append( maxResponseBytes );
+			for( Header header : headers ) {
+				key.append( '\n' ).append( header.getName() ).append( ": " ).append( header.getValue() );
+			}
+			return this.singleFlightGroup.execute( key.toString(), new SingleFlightGroup.Request() {
+				@Override
+				public FirebaseResponse execute() throws FirebaseException {
+					return Firebase.this.getFromUrlNow( url, headers, maxResponseBytes );
+				}
+			});
+		}
+		
+		return this.getFromUrlNow( url, headers, maxResponseBytes );
+	}
+	
+	private FirebaseResponse getFromUrlNow( String url, List<Header> headers, long maxResponseBytes ) throws FirebaseException {
+		
+		// make the request
+		HttpGet request = new HttpGet( url );
+		FirebaseResponse response = this.execute( FirebaseRestMethod.GET, request, headers, maxResponseBytes, null );
+		
+		return response;
+	}
+	
+	/* runs the reads with up to the bulk-concurrency in flight, the calling thread being one of them */
+	private void readAll( final List<BulkRead> reads, final List<NameValuePair> query, final List<Header> headers, final long maxResponseBytes,
+			final Map<String, FirebaseResponse> responses, final Map<String, Throwable> failures, final List<BulkRead> refused ) throws FirebaseException {
+		
+		final AtomicInteger next = new AtomicInteger();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				for( int i = next.getAndIncrement(); i < reads.size(); i = next.getAndIncrement() ) {
+					Firebase.this.read( reads.get(i), query, headers, maxResponseBytes, responses, failures, refused );
+				}
+			}
+		};
+		
+		int helpers = Math.min( this.bulkConcurrency, reads.size() ) - 1;
+		final CountDownLatch done = new CountDownLatch( Math.max( helpers, 0 ) );
+		ExecutorService executor = helpers > 0 ? this.getBulkExecutor() : null;
+		for( int i = 0; i < helpers; i++ ) {
+			final Runnable helper = worker;
+			executor.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						helper.run();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		worker.run();
+		
+		try {
+			done.await();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			String msg = "interrupted while waiting for bulk-reads";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+		}
+	}
+	
+	private void read( BulkRead read, List<NameValuePair> query, List<Header> headers, long maxResponseBytes,
+			Map<String, FirebaseResponse> responses, Map<String, Throwable> failures, List<BulkRead> refused ) {
+		
+		String urlPrefix = read.path.isEmpty() ? this.baseUrl : this.baseUrl + "/" + read.path;
+		
+		// a single path
+		if( read.keys == null ) {
+			try {
+				responses.put( read.path, this.getFromUrl( this.buildFullUrlFromPrefix(urlPrefix, query), headers, maxResponseBytes ) );
+			} catch( Throwable t ) {
+				LOGGER.warn( "bulk-read failed for path '" + read.path + "'", t );
+				failures.put( read.path, t );
+			}
+			return;
+		}
+		
+		// siblings, through one read of their parent filtered to the range of their keys
+		try {
+			
+			List<String> sorted = new ArrayList<String>( read.keys );
+			Collections.sort( sorted, KEY_ORDER );
+			List<NameValuePair> range = new ArrayList<NameValuePair>();
+			range.add( new BasicNameValuePair( "orderBy", "\"$key\"" ) );
+			range.add( new BasicNameValuePair( "startAt", JacksonUtility.GET_JSON_STRING_FROM_OBJECT(sorted.get(0)) ) );
+			range.add( new BasicNameValuePair( "endAt", JacksonUtility.GET_JSON_STRING_FROM_OBJECT(sorted.get(sorted.size() - 1)) ) );
+			
+			FirebaseResponse response = this.getFromUrl( this.buildFullUrlFromPrefix(urlPrefix, range), headers, maxResponseBytes );
+			if( !response.getSuccess() ) {
+				LOGGER.info( "merged bulk-read refused (" + response.getCode() + ") for parent '" + read.path + "'" );
+				refused.add( read );
+				return;
+			}
+			
+			// split it into a response per child; the ETag, if any, was for the parent so is dropped
+			Object parent = this.compactBody
+					? response.getCompactBody().get( null )
+					: JacksonUtility.GET_JSON_STRING_AS_OBJECT( response.getRawBody() );
+			Map<String, String> childHeaders = new LinkedHashMap<String, String>( response.getHeaders() );
+			childHeaders.remove( "ETag" );
+			for( int i = 0; i < read.keys.size(); i++ ) {
+				Object child = parent instanceof Map ? ((Map<?, ?>) parent).get( read.keys.get(i) ) : null;
+				String rawBody = JacksonUtility.GET_JSON_STRING_FROM_OBJECT( child );
+				FirebaseResponse childResponse = null;
+				if( this.compactBody ) {
+					childResponse = new FirebaseResponse( true, response.getCode(), new CompactJsonTree(rawBody), rawBody, childHeaders );
+				} else {
+					childResponse = new FirebaseResponse( true, response.getCode(), JacksonUtility.GET_JSON_STRING_AS_MAP(rawBody), rawBody, childHeaders );
+				}
+				responses.put( read.getChildPath(i), childResponse );
+			}
+			
+		} catch( Throwable t ) {
+			
+			LOGGER.warn( "merged bulk-read failed for parent '" + read.path + "'", t );
+			refused.add( read );
+			
+		}
+	}
+	
+	private synchronized ExecutorService getBulkExecutor() {
+		
+		if( this.bulkExecutor == null ) {
+			this.bulkExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread result = new Thread( r, "firebase4j-bulk-read" );
+					result.setDaemon( true );
+					return result;
+				}
+			});
+		}
+		return this.bulkExecutor;
+	}
+	
+	/* strips surrounding whitespace and slashes, and doubled slashes */
+	private static String normalizePath( String path ) {
+		
+		StringBuilder result = new StringBuilder();
+		if( path != null ) {
+			for( String segment : path.split( "/" ) ) {
+				segment = segment.trim();
+				if( !segment.isEmpty() ) {
+					result.append( result.length() == 0 ? "" : "/" ).append( segment );
+				}
+			}
+		}
+		return result.toString();
+	}
+	
+	private static Integer parseIntKey( String key ) {
+		
+		try {
+			return Integer.valueOf( key );
+		} catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+	
+	private static CloseableHttpClient buildHttpClient() {
+		
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal( MAX_CONNECTIONS );
+		connectionManager.setDefaultMaxPerRoute( MAX_CONNECTIONS );
+		
+		return HttpClients.custom().setConnectionManager( connectionManager ).build();
+	}
+	
+	private StringEntity buildEntityFromDataMap( Map<String, Object> dataMap ) throws FirebaseException, JacksonUtilityException {
+		
+		String jsonData = JacksonUtility.GET_JSON_STRING_FROM_MAP( dataMap );
+		
+		return this.buildEntityFromJsonData( jsonData );
+	}
+	
+	private StringEntity buildEntityFromJsonData( String jsonData ) throws FirebaseException {
+
+		StringEntity result = null;
+		try {
+			
+			result = new StringEntity( jsonData , "UTF-8" );
+			
+		} catch( Throwable t ) {
+			
+			String msg = "unable to create entity from data; data was: " + jsonData;
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, t );
+			
+		}
+		
+		return result;
+	}
+	
+	private String buildFullUrlFromRelativePath( String path ) throws UnsupportedEncodingException {
+		
+		// massage the path (whether it's null, empty, or not) into a full URL
+		if( path == null ) {
+			path = "";
+		}
+		path = path.trim();
+		if( !path.isEmpty() && !path.startsWith( "/" ) ) {
+			path = "/" + path;
+		}
+
+		return this.buildFullUrlFromPrefix( this.baseUrl + path );
+	}
+	
+	/* the prefix is the base-url plus the path, without the json extension, query or token */
+	String buildFullUrlFromPrefix( String urlPrefix ) throws UnsupportedEncodingException {
+		return this.buildFullUrlFromPrefix( urlPrefix, this.query );
+	}
+	
+	private String buildFullUrlFromPrefix( String urlPrefix, List<NameValuePair> query ) throws UnsupportedEncodingException {
+		
+		String url = urlPrefix;
+
+		// the root of the data is '/.json'; a bare host (ie: 'https://x.firebaseio.com') would otherwise become 'x.firebaseio.com.json'
+		if( useJsonExt && urlPrefix.indexOf( '/', urlPrefix.indexOf("://") + 3 ) < 0 ) url += "/";
+		
+		if(useJsonExt) url += Firebase.FIREBASE_API_JSON_EXTENSION;
+		
+		if(query != null) {
+			url += "?";
+			Iterator<NameValuePair> it = query.iterator();
+			NameValuePair e;
+			while(it.hasNext()) {
+				e = it.next();
+				url += e.getName() + "=" + URLEncoder.encode(e.getValue(), "UTF-8") + "&";
+			}
+		}
+		
+		String secureToken = authTokenProvider != null ? authTokenProvider.getToken() : null;
+		if(secureToken != null) {
+			if(query != null) {
+				url += "access_token=" + secureToken;
+			} else {
+				url += "?access_token=" + secureToken;
+			}
+		}
+		
+		if(url.lastIndexOf("&") == url.length()) {
+			StringBuilder str = new StringBuilder(url);
+			str.deleteCharAt(str.length());
+			url = str.toString();
+		}
+		
+		LOGGER.info( "built full url to '" + url + "' using url-prefix of '" + urlPrefix + "'" );
 		
 		return url;
 	}
 	
 	
+	private void sleepBeforeRetry( int attempt ) throws FirebaseException {
+		
+		long backoff = Math.min( TRANSACTION_MAX_BACKOFF_MILLIS, TRANSACTION_BACKOFF_MILLIS << Math.min( attempt, 16 ) );
+		try {
+			Thread.sleep( backoff / 2 + (long) (RANDOM.nextDouble() * backoff / 2) );
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new FirebaseException( "interrupted while backing off", e );
+		}
+	}
+	
+	private FirebaseResponse execute( FirebaseRestMethod method, HttpRequestBase request ) throws FirebaseException {
+		
+		FirebaseResponse response = this.execute( method, request, this.headers, this.getResponseLimit(), null );
+		this.clearQueryAndHeaders();
+		
+		return response;
+	}
+	
+	/* unlike the above, leaves the query and headers for the next request alone; if a sink is provided, a 
+	 * successful response-body is copied into it rather than read into memory */
+	private FirebaseResponse execute( FirebaseRestMethod method, HttpRequestBase request, List<Header> headers, 
+			long maxResponseBytes, OutputStream sink ) throws FirebaseException {
+		
+		// add any headers for this request
+		for( Header header : headers ) {
+			request.addHeader( header );
+		}
+		
+		// let the interceptors see (and change) the request before it's sent
+		if( this.printSilent && method != FirebaseRestMethod.GET && !request.containsHeader("if-match") ) {
+			Firebase.addPrintSilent( request );
+		}
+		List<RequestInterceptor> intercepted = new ArrayList<RequestInterceptor>( this.interceptors.size() );
+		
+		RequestGovernor governor = this.governor;
+		RequestGovernor.Permit permit = null;
+		HttpResponse httpResponse = null;
+		FirebaseResponse response = null;
+		FirebaseException error = null;
+		try {
+			
+			for( RequestInterceptor interceptor : this.interceptors ) {
+				interceptor.beforeRequest( method, request );
+				intercepted.add( interceptor );
+			}
+			
+			// wait for capacity, if governed
+			if( governor != null ) {
+				long requestBytes = 0;
+				if( request instanceof HttpEntityEnclosingRequestBase && ((HttpEntityEnclosingRequestBase) request).getEntity() != null ) {
+					requestBytes = Math.max( 0, ((HttpEntityEnclosingRequestBase) request).getEntity().getContentLength() );
+				}
+				permit = governor.acquire( requestBytes );
+			}
+			
+			httpResponse = this.makeRequest( request );
+			response = this.processResponse( method, httpResponse, maxResponseBytes, sink );
+			
+			// give the token-provider a chance to refresh early
+			if( response.isAuthExpired() && this.authTokenProvider != null ) {
+				this.authTokenProvider.onAuthFailure();
+			}
+			
+		} catch( FirebaseException fe ) {
+			
+			error = fe;
+			throw fe;
+			
+		} catch( RuntimeException re ) {
+			
+			error = new FirebaseException( "request failed for '" + request.getURI() + "'", re );
+			throw re;
+			
+		} finally {
+			
+			// hand the connection back to the pool; unless the body wasn't read, which may be too large to drain
+			if( httpResponse != null && response != null ) {
+				EntityUtils.consumeQuietly( httpResponse.getEntity() );
+			} else if( httpResponse != null ) {
+				request.abort();
+			}
+			if( permit != null ) {
+				int code = httpResponse != null ? httpResponse.getStatusLine().getStatusCode() : 0;
+				long responseBytes = response != null ? response.getRawBodyLength() : 0;
+				if( sink != null && httpResponse != null && httpResponse.getEntity() != null ) {
+					responseBytes = Math.max( responseBytes, httpResponse.getEntity().getContentLength() );
+				}
+				governor.release( permit, code, responseBytes, this.getRetryAfterMillis( httpResponse ) );
+			}
+			
+			// let every interceptor that saw the request see how it ended; a refusal only counts if it hadn't failed
+			if( response == null && error == null ) {
+				error = new FirebaseException( "request did not complete for '" + request.getURI() + "'" );
+			}
+			FirebaseException refusal = Firebase.afterResponse( intercepted, method, request, response, error );
+			if( refusal != null && error == null ) {
+				throw refusal;
+			}
+			
+		}
+		
+		return response;
+	}
+	
+	/* calls each interceptor, even if an earlier one throws; returns the first one's refusal, if any */
+	private static FirebaseException afterResponse( List<RequestInterceptor> interceptors, FirebaseRestMethod method, 
+			HttpRequestBase request, FirebaseResponse response, FirebaseException error ) {
+		
+		FirebaseException result = null;
+		for( RequestInterceptor interceptor : interceptors ) {
+			try {
+				interceptor.afterResponse( method, request, response, error );
+			} catch( FirebaseException fe ) {
+				if( result == null ) {
+					result = fe;
+				}
+			} catch( RuntimeException re ) {
+				LOGGER.error( "interceptor failed after request for '" + request.getURI() + "'", re );
+				if( result == null ) {
+					result = new FirebaseException( "interceptor failed after request for '" + request.getURI() + "'", re );
+				}
+			}
+		}
+		return result;
+	}
+	
+	private static void addPrintSilent( HttpRequestBase request ) {
+		
+		URI uri = request.getURI();
+		String query = uri.getRawQuery();
+		if( query != null && (query.startsWith("print=") || query.contains("&print=")) ) {
+			return; // the caller asked for something else
+		}
+		String url = uri.toString();
+		int fragment = url.indexOf( '#' );
+		String suffix = query == null ? "?print=silent" : (query.isEmpty() || query.endsWith("&") ? "print=silent" : "&print=silent");
+		request.setURI( URI.create(fragment < 0 ? url + suffix : url.substring(0, fragment) + suffix + url.substring(fragment)) );
+	}
+	
+	private long getRetryAfterMillis( HttpResponse httpResponse ) {
+		
+		Header header = httpResponse != null ? httpResponse.getFirstHeader( "Retry-After" ) : null;
+		return FirebaseResponse.GET_RETRY_AFTER_MILLIS( header != null ? header.getValue() : null );
+	}
+	
 	private HttpResponse makeRequest( HttpRequestBase request ) throws FirebaseException {
 		
 		HttpResponse response = null;
@@ -515,8 +1538,7 @@ public class Firebase {
 		
 		try {
 			
-			HttpClient client = new DefaultHttpClient();
-			response = client.execute( request );
+			response = this.httpClient.execute( request );
 			
 		} catch( Throwable t ) {
 		
@@ -529,7 +1551,7 @@ public class Firebase {
 		return response;
 	}
 	
-	private FirebaseResponse processResponse( FirebaseRestMethod method, HttpResponse httpResponse ) throws FirebaseException {
+	private FirebaseResponse processResponse( FirebaseRestMethod method, HttpResponse httpResponse, long maxResponseBytes, OutputStream sink ) throws FirebaseException {
 	
 		FirebaseResponse response = null;
 
@@ -553,29 +1575,53 @@ public class Firebase {
 		// get the response-code
 		int code = httpResponse.getStatusLine().getStatusCode();
 		
-		// set the response-success
-		boolean success = false;
-		switch( method ) {
-			case DELETE:
-				if( httpResponse.getStatusLine().getStatusCode() == 204
-					&& "No Content".equalsIgnoreCase( httpResponse.getStatusLine().getReasonPhrase() ) )
-				{
-					success = true;
-				}
-				break;
-			case PATCH:
-			case PUT:
-			case POST:
-			case GET:
-				if( httpResponse.getStatusLine().getStatusCode() == 200
-					&& "OK".equalsIgnoreCase( httpResponse.getStatusLine().getReasonPhrase() ) )
-				{
-					success = true;
+		// get the response-headers
+		Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+		for( Header header : httpResponse.getAllHeaders() ) {
+			responseHeaders.put( header.getName(), header.getValue() );
+		}
+		
+		// set the response-success from the code alone; reason-phrases are rewritten by proxies, and absent on HTTP/2
+		boolean success = FirebaseResponse.IS_SUCCESS( code );
+		
+		// refuse a response-body that is declared to be too large, before reading any of it
+		if( entity != null && maxResponseBytes > 0 && entity.getContentLength() > maxResponseBytes ) {
+			
+			String msg = "response-body of " + entity.getContentLength() + " bytes exceeds limit of " + maxResponseBytes + " bytes";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		
+		// copy a successful response-body to the sink, if there is one
+		if( sink != null && success ) {
+			
+			try {
+				
+				if( entity != null ) {
+					InputStream is = new BoundedInputStream( entity.getContent(), maxResponseBytes );
+					byte[] buffer = new byte[8192];
+					int n;
+					while( (n=is.read(buffer)) != -1 ) {
+						sink.write( buffer, 0, n );
+					}
+					sink.flush();
 				}
-				break;
-			default:
-				break;
 				
+			} catch( ResponseTooLargeException e ) {
+				
+				String msg = "response-body exceeded limit of " + maxResponseBytes + " bytes";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, e );
+				
+			} catch( Throwable t ) {
+				
+				String msg = "unable to copy response-content to sink";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, t );
+				
+			}
+			
+			return new FirebaseResponse( success, code, (Map<String, Object>) null, null, responseHeaders );
 		}
 		
 		// get the response-body
@@ -584,7 +1630,7 @@ public class Firebase {
 			
 			try {
 				
-				InputStream is = entity.getContent();
+				InputStream is = new BoundedInputStream( entity.getContent(), maxResponseBytes );
 				char[] buffer = new char[1024];
 				Reader reader = new BufferedReader( new InputStreamReader( is, "UTF-8" ) );
 				int n;
@@ -592,6 +1638,12 @@ public class Firebase {
 					writer.write( buffer, 0, n );
 				}
 				
+			} catch( ResponseTooLargeException e ) {
+				
+				String msg = "response-body exceeded limit of " + maxResponseBytes + " bytes";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, e );
+				
 			} catch( Throwable t ) {
 				
 				String msg = "unable to read response-content; read up to this point: '" + writer.toString() + "'";
@@ -602,26 +1654,61 @@ public class Firebase {
 			}
 		}
 		
-		// convert response-body to map
+		// there's nothing to convert when there's no response-body (ie: a silent write)
+		if( code == 204 ) {
+			return new FirebaseResponse( success, code, new LinkedHashMap<String, Object>(), writer.toString(), responseHeaders );
+		}
+		
+		// convert response-body to a compact tree, if asked to; otherwise to a map
+		CompactJsonTree tree = null;
 		Map<String, Object> body = null;
-		try {
+		if( this.compactBody ) {
 			
-			body = JacksonUtility.GET_JSON_STRING_AS_MAP( writer.toString() );
+			try {
+				
+				tree = JacksonUtility.GET_JSON_STRING_AS_COMPACT_TREE( writer.toString() );
+				
+			} catch( JacksonUtilityException jue ) {
+				
+				String msg = "unable to convert response-body into compact tree; response-body was: '" + writer.toString() + "'";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, jue );
+			}
 			
-		} catch( JacksonUtilityException jue ) {
+		} else {
 			
-			String msg = "unable to convert response-body into map; response-body was: '" + writer.toString() + "'";
-			LOGGER.error( msg );
-			throw new FirebaseException( msg, jue );
+			try {
+				
+				body = JacksonUtility.GET_JSON_STRING_AS_MAP( writer.toString() );
+				
+			} catch( JacksonUtilityException jue ) {
+				
+				String msg = "unable to convert response-body into map; response-body was: '" + writer.toString() + "'";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, jue );
+			}
 		}
 		
 		// build the response
-		response = new FirebaseResponse( success, code, body, writer.toString() );
+		if( tree != null ) {
+			response = new FirebaseResponse( success, code, tree, writer.toString(), responseHeaders );
+		} else {
+			response = new FirebaseResponse( success, code, body, writer.toString(), responseHeaders );
+		}
+		
+		return response;
+	}
+	
+	private void clearQueryAndHeaders() {
 		
 		//clear the query
 		query.clear(); // query is only initialized in the constructor. 
-		
-		return response;
+		headers.clear();
+		nextMaxResponseBytes = 0;
+	}
+	
+	private long getResponseLimit() {
+		return this.nextMaxResponseBytes > 0 ? this.nextMaxResponseBytes : this.maxResponseBytes;
 	}
 	
 	
@@ -633,6 +1720,75 @@ public class Firebase {
 ///////////////////////////////////////////////////////////////////////////////
 
 	
+	/* fails a read once more than the limit has been read from the stream */
+	private static class BoundedInputStream extends FilterInputStream {
+		
+		private final long limit;
+		private long count = 0;
+		
+		BoundedInputStream( InputStream in, long limit ) {
+			super( in );
+			this.limit = limit;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			
+			int result = super.read();
+			if( result != -1 ) {
+				this.count( 1 );
+			}
+			return result;
+		}
+		
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			
+			int result = super.read( b, off, len );
+			if( result > 0 ) {
+				this.count( result );
+			}
+			return result;
+		}
+		
+		private void count( int n ) throws IOException {
+			
+			this.count += n;
+			if( this.limit > 0 && this.count > this.limit ) {
+				throw new ResponseTooLargeException( "read " + this.count + " bytes; limit is " + this.limit );
+			}
+		}
+	}
+	
+	private static class ResponseTooLargeException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ResponseTooLargeException( String message ) {
+			super( message );
+		}
+	}
+	
+	/* one planned bulk-read: either a single path (keys is null), or siblings under one parent */
+	private static class BulkRead {
+		
+		final String path;
+		final List<String> keys;
+		
+		BulkRead( String path ) {
+			this( path, null );
+		}
+		
+		BulkRead( String parent, List<String> keys ) {
+			this.path = parent;
+			this.keys = keys;
+		}
+		
+		String getChildPath( int i ) {
+			return this.path.isEmpty() ? this.keys.get( i ) : this.path + "/" + this.keys.get( i );
+		}
+	}
+	
 	public enum FirebaseRestMethod {
 		
 		GET,
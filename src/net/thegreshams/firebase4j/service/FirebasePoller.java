@@ -0,0 +1,421 @@
+package net.thegreshams.firebase4j.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseDiff;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.apache.log4j.Logger;
+
+/**
+ * Watches a location by polling it, for clients that can't hold a stream open (ie: behind proxies that cut
+ * long-lived connections), and tells a {@link Listener} only what changed between polls.
+ *
+ * Every poll asks for the location's ETag; when it matches the previous poll's the body is not even parsed.
+ * Otherwise it is diffed against the previous snapshot (see {@link FirebaseDiff#COMPUTE(Object, Object)}),
+ * and the listener gets the diff. The first poll reports the whole location as added.
+ *
+ * Polls never overlap, and their interval adapts: it drops to the minimum whenever data changed, and
+ * doubles after each poll that found nothing new (or failed), up to the maximum; a throttled poll waits at
+ * least as long as the service's Retry-After.
+ */
+public class FirebasePoller {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	public static final long				DEFAULT_MIN_INTERVAL_MILLIS
+																	= TimeUnit.SECONDS.toMillis( 1 );
+
+	public static final long				DEFAULT_MAX_INTERVAL_MILLIS
+																	= TimeUnit.SECONDS.toMillis( 30 );
+
+	private static final Charset			UTF_8					= Charset.forName( "UTF-8" );
+
+	private static final List<Header>		ETAG_HEADERS			= Collections.<Header>singletonList( new BasicHeader("X-Firebase-ETag", "true") );
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Firebase firebase;
+	private final String path;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+	private final Listener listener;
+	private final ScheduledExecutorService scheduler;
+
+	/* held for the whole of a poll, so polls never overlap; the fields below are only held briefly */
+	private final Object pollLock = new Object();
+
+	/* guarded by this; snapshot and etag are only replaced while also holding pollLock */
+	private Object snapshot = null;
+	private String etag = null;
+	private boolean polled = false;
+	private long intervalMillis;
+	private boolean started = false;
+	private boolean stopped = false;
+
+	private final AtomicLong polls = new AtomicLong();
+	private final AtomicLong unchangedPolls = new AtomicLong();
+	private final AtomicLong failedPolls = new AtomicLong();
+
+	/**
+	 * @param firebase -- to read through
+	 * @param path -- the location to watch, relative to the base-url; if null/empty, refers to the base-url
+	 * @param listener -- told of the changes
+	 * @throws {@link FirebaseException} if firebase or listener is null
+	 */
+	public FirebasePoller( Firebase firebase, String path, Listener listener ) throws FirebaseException {
+		this( firebase, path, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS, listener );
+	}
+
+	/**
+	 * @param firebase -- to read through
+	 * @param path -- the location to watch, relative to the base-url; if null/empty, refers to the base-url
+	 * @param minIntervalMillis -- the shortest wait between polls
+	 * @param maxIntervalMillis -- the longest wait between polls (unless the service asks for longer)
+	 * @param listener -- told of the changes
+	 * @throws {@link FirebaseException} if firebase or listener is null
+	 */
+	public FirebasePoller( Firebase firebase, String path, long minIntervalMillis, long maxIntervalMillis, Listener listener ) throws FirebaseException {
+
+		if( firebase == null || listener == null ) {
+			String msg = "firebase and listener cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		this.firebase = firebase;
+		this.path = path != null ? path.trim() : "";
+		this.minIntervalMillis = Math.max( 1, minIntervalMillis );
+		this.maxIntervalMillis = Math.max( this.minIntervalMillis, maxIntervalMillis );
+		this.listener = listener;
+		this.intervalMillis = this.minIntervalMillis;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread result = new Thread( r, "firebase4j-poller" );
+				result.setDaemon( true );
+				return result;
+			}
+		});
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Starts polling, at once; has no effect if already started.
+	 *
+	 * @return FirebasePoller -- return this FirebasePoller object
+	 * @throws {@link FirebaseException} if stopped
+	 */
+	public synchronized FirebasePoller start() throws FirebaseException {
+
+		if( this.stopped ) {
+			String msg = "poller was stopped; it cannot be restarted";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		if( !this.started ) {
+			this.started = true;
+			this.schedule( 0 );
+		}
+		return this;
+	}
+
+	/**
+	 * Stops polling; a poll in progress still finishes (and delivers its changes), but no other is scheduled.
+	 */
+	public void stop() {
+
+		synchronized( this ) {
+			this.stopped = true;
+		}
+		this.scheduler.shutdown();
+	}
+
+	/**
+	 * Polls now, from the calling thread, and delivers any changes to the listener as a scheduled poll
+	 * would; if a scheduled poll is in progress, waits for it to finish first, so the two never overlap.
+	 *
+	 * @return {@link FirebaseDiff} -- empty if nothing changed
+	 * @throws {@link FirebaseException} if the location could not be read
+	 */
+	public FirebaseDiff pollNow() throws FirebaseException {
+
+		synchronized( this.pollLock ) {
+
+			this.polls.incrementAndGet();
+			try {
+				return this.pollOnce();
+			} catch( FirebaseException e ) {
+				this.failedPolls.incrementAndGet();
+				throw e;
+			} catch( RuntimeException e ) {
+				this.failedPolls.incrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the data as of the last poll that read it; shared with the listener, so should be treated as
+	 * read-only.
+	 *
+	 * @return a Map, List, String, Number, Boolean, or null (no data, or not yet polled)
+	 */
+	public synchronized Object getSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Returns the current wait between polls.
+	 *
+	 * @return milliseconds
+	 */
+	public synchronized long getIntervalMillis() {
+		return this.intervalMillis;
+	}
+
+	/**
+	 * Returns the number of polls made.
+	 *
+	 * @return the number of polls
+	 */
+	public long getPollCount() {
+		return this.polls.get();
+	}
+
+	/**
+	 * Returns the number of polls that found nothing new.
+	 *
+	 * @return the number of unchanged polls
+	 */
+	public long getUnchangedCount() {
+		return this.unchangedPolls.get();
+	}
+
+	/**
+	 * Returns the number of polls that failed.
+	 *
+	 * @return the number of failed polls
+	 */
+	public long getFailedCount() {
+		return this.failedPolls.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( FirebasePoller.class.getSimpleName() + "[ " )
+				.append( "(Path:" ).append( this.path ).append( ") " )
+				.append( "(Interval:" ).append( this.intervalMillis ).append( "ms) " )
+				.append( "(Polls:" ).append( this.polls.get() ).append( ") " )
+				.append( "(Unchanged:" ).append( this.unchangedPolls.get() ).append( ") " )
+				.append( "(Failed:" ).append( this.failedPolls.get() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private void schedule( long delayMillis ) {
+
+		try {
+			this.scheduler.schedule( new Runnable() {
+				@Override
+				public void run() {
+					FirebasePoller.this.poll();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS );
+		} catch( RejectedExecutionException e ) {
+			LOGGER.debug( "poller stopped; not scheduling another poll" );
+		}
+	}
+
+	/* called holding pollLock */
+	private FirebaseDiff pollOnce() throws FirebaseException {
+
+		// read without holding this, so the getters aren't held up for as long as the request takes
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FirebaseResponse response = null;
+		try {
+			response = this.firebase.readIsolated( this.path, ETAG_HEADERS, out );
+		} catch( UnsupportedEncodingException e ) {
+			String msg = "unable to build url to poll '" + this.path + "'";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+		}
+		if( !response.getSuccess() ) {
+
+			String msg = "unable to poll '" + this.path + "' (" + response.getCode() + "): " + response.getRawBody();
+			LOGGER.warn( msg );
+			throw new PollException( msg, response );
+		}
+
+		// unchanged, as far as the service can tell without sending it
+		String etag = response.getETag();
+		Object previous = null;
+		synchronized( this ) {
+			if( this.polled && etag != null && etag.equals( this.etag ) ) {
+				this.unchangedPolls.incrementAndGet();
+				return FirebaseDiff.COMPUTE( null, null );
+			}
+			previous = this.snapshot;
+		}
+
+		Object next = null;
+		try {
+			next = JacksonUtility.GET_JSON_STRING_AS_OBJECT( new String( out.toByteArray(), UTF_8 ) );
+		} catch( JacksonUtilityException jue ) {
+			String msg = "unable to read polled data @ '" + this.path + "'";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, jue );
+		}
+
+		// only polls replace the snapshot, and they hold pollLock, so previous is still current here
+		FirebaseDiff result = FirebaseDiff.COMPUTE( previous, next );
+		synchronized( this ) {
+			this.snapshot = next;
+			this.etag = etag;
+			this.polled = true;
+		}
+
+		if( result.isEmpty() ) {
+			this.unchangedPolls.incrementAndGet();
+		} else {
+			LOGGER.info( "polled '" + this.path + "': " + result );
+			try {
+				this.listener.onChange( result, next );
+			} catch( Throwable t ) {
+				LOGGER.error( "listener failed on changes to '" + this.path + "'", t );
+			}
+		}
+
+		return result;
+	}
+
+	/* runs on the scheduler; a poll is rescheduled only once the previous one is done, so they never overlap */
+	private void poll() {
+
+		synchronized( this ) {
+			if( this.stopped ) {
+				return;
+			}
+		}
+
+		long retryAfterMillis = 0;
+		boolean changed = false;
+		synchronized( this.pollLock ) { // so the listener hears of errors one call at a time, as of changes
+
+			try {
+
+				changed = !this.pollNow().isEmpty();
+
+			} catch( Throwable t ) {
+
+				FirebaseResponse response = t instanceof PollException ? ((PollException) t).response : null;
+				if( response != null && response.isThrottled() ) {
+					retryAfterMillis = response.getRetryAfterMillis();
+				}
+				try {
+					this.listener.onError( response, t instanceof FirebaseException ? (FirebaseException) t
+							: new FirebaseException( "unable to poll '" + this.path + "'", t ) );
+				} catch( Throwable t2 ) {
+					LOGGER.error( "listener failed on error polling '" + this.path + "'", t2 );
+				}
+
+			}
+		}
+
+		long delayMillis = 0;
+		synchronized( this ) {
+			if( this.stopped ) {
+				return;
+			}
+			this.intervalMillis = changed
+					? this.minIntervalMillis
+					: Math.min( this.maxIntervalMillis, this.intervalMillis * 2 );
+			delayMillis = Math.max( this.intervalMillis, retryAfterMillis );
+		}
+		this.schedule( delayMillis );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Told of the changes found by polling, and of failed polls; called from the poller's thread, one call
+	 * at a time.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param diff -- what changed since the previous poll; never empty
+		 * @param snapshot -- the data now; treat as read-only
+		 */
+		public void onChange( FirebaseDiff diff, Object snapshot );
+
+		/**
+		 * @param response -- the unsuccessful response, or null if there was none
+		 * @param error -- why the poll failed
+		 */
+		public void onError( FirebaseResponse response, FirebaseException error );
+	}
+
+	/* carries the unsuccessful response, so the poll can back off as the service asked */
+	private static class PollException extends FirebaseException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FirebaseResponse response;
+
+		PollException( String message, FirebaseResponse response ) {
+			super( message );
+			this.response = response;
+		}
+	}
+
+}
@@ -0,0 +1,290 @@
+package net.thegreshams.firebase4j.service;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+
+/**
+ * An immutable reference to a location within a {@link Firebase}.
+ *
+ * A reference is only its Firebase and its precomputed url-prefix (the base-url plus its path), so millions
+ * can be held at once; every reference shares its Firebase's connections, governor, auth and other
+ * configuration. Queries and headers added to the Firebase apply to the next request made through any of
+ * its references, just as they do for requests made on the Firebase itself.
+ */
+public final class FirebaseReference {
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Firebase firebase;
+	private final String urlPrefix;
+
+	FirebaseReference( Firebase firebase, String urlPrefix ) {
+		this.firebase = firebase;
+		this.urlPrefix = urlPrefix;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Returns a reference to the provided-path relative to this one.
+	 *
+	 * @param path -- '/'-separated; if null/empty, refers to this location
+	 * @return {@link FirebaseReference}
+	 */
+	public FirebaseReference child( String path ) {
+
+		if( path == null ) {
+			return this;
+		}
+
+		// drop empty segments (ie: leading, trailing or doubled slashes)
+		StringBuilder result = new StringBuilder( this.urlPrefix.length() + path.length() + 1 ).append( this.urlPrefix );
+		int start = 0;
+		int length = path.length();
+		while( start < length ) {
+			int end = path.indexOf( '/', start );
+			if( end < 0 ) {
+				end = length;
+			}
+			String segment = path.substring( start, end ).trim();
+			if( !segment.isEmpty() ) {
+				result.append( '/' ).append( segment );
+			}
+			start = end + 1;
+		}
+
+		return result.length() == this.urlPrefix.length() ? this : new FirebaseReference( this.firebase, result.toString() );
+	}
+
+	/**
+	 * Returns a reference to a new child of this location, keyed by a push-id generated on the client; 
+	 * unlike {@link #post(String)}, no round-trip is needed to learn the key.
+	 *
+	 * @return {@link FirebaseReference}
+	 */
+	public FirebaseReference push() {
+		return new FirebaseReference( this.firebase, this.urlPrefix + "/" + PushIdGenerator.NEXT_PUSH_ID() );
+	}
+
+	/**
+	 * Returns a reference to the parent of this location.
+	 *
+	 * @return {@link FirebaseReference}, or null if this refers to the base-url
+	 */
+	public FirebaseReference parent() {
+
+		if( this.isRoot() ) {
+			return null;
+		}
+		return new FirebaseReference( this.firebase, this.urlPrefix.substring( 0, this.urlPrefix.lastIndexOf('/') ) );
+	}
+
+	/**
+	 * Returns a reference to the base-url.
+	 *
+	 * @return {@link FirebaseReference}
+	 */
+	public FirebaseReference root() {
+		return this.firebase.getReference();
+	}
+
+	/**
+	 * Returns the last segment of this location's path.
+	 *
+	 * @return the key, or null if this refers to the base-url
+	 */
+	public String getKey() {
+		return this.isRoot() ? null : this.urlPrefix.substring( this.urlPrefix.lastIndexOf('/') + 1 );
+	}
+
+	/**
+	 * Returns this location's path relative to the base-url.
+	 *
+	 * @return the path, without leading or trailing slash; empty if this refers to the base-url
+	 */
+	public String getPath() {
+		return this.isRoot() ? "" : this.urlPrefix.substring( this.firebase.getBaseUrl().length() + 1 );
+	}
+
+	/**
+	 * Returns the base-url plus this location's path.
+	 *
+	 * @return the url-prefix
+	 */
+	public String getUrlPrefix() {
+		return this.urlPrefix;
+	}
+
+	/**
+	 * Returns the Firebase this reference belongs to.
+	 *
+	 * @return {@link Firebase}
+	 */
+	public Firebase getFirebase() {
+		return this.firebase;
+	}
+
+	/**
+	 * GETs the data at this location.
+	 *
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse get() throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.request( FirebaseRestMethod.GET, this.urlPrefix, null );
+	}
+
+	/**
+	 * PUTs data to this location (ie: creates or overwrites).
+	 *
+	 * @param data -- can be null/empty
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link JacksonUtilityException}
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse put( Map<String, Object> data ) throws JacksonUtilityException, FirebaseException, UnsupportedEncodingException {
+		return this.put( JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * PUTs data to this location (ie: creates or overwrites).
+	 *
+	 * @param jsonData -- can be null/empty
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse put( String jsonData ) throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.request( FirebaseRestMethod.PUT, this.urlPrefix, jsonData );
+	}
+
+	/**
+	 * PATCHs data on this location.
+	 *
+	 * @param data -- can be null/empty
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link JacksonUtilityException}
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse patch( Map<String, Object> data ) throws JacksonUtilityException, FirebaseException, UnsupportedEncodingException {
+		return this.patch( JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * PATCHs data on this location.
+	 *
+	 * @param jsonData -- a json-object
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse patch( String jsonData ) throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.request( FirebaseRestMethod.PATCH, this.urlPrefix, jsonData );
+	}
+
+	/**
+	 * POSTs data to this location (ie: inserts it under a Firebase-generated key).
+	 *
+	 * @param data -- can be null/empty but will result in no data being POSTed
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link JacksonUtilityException}
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse post( Map<String, Object> data ) throws JacksonUtilityException, FirebaseException, UnsupportedEncodingException {
+		return this.post( JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * POSTs data to this location (ie: inserts it under a Firebase-generated key).
+	 *
+	 * @param jsonData -- can be null/empty but will result in no data being POSTed
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse post( String jsonData ) throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.request( FirebaseRestMethod.POST, this.urlPrefix, jsonData );
+	}
+
+	/**
+	 * DELETEs the data at this location.
+	 *
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse delete() throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.request( FirebaseRestMethod.DELETE, this.urlPrefix, null );
+	}
+
+	/**
+	 * Atomically updates the data at this location; see {@link Firebase#transaction(String, TransactionHandler)}.
+	 *
+	 * @param handler -- computes the new data from the current data
+	 * @return {@link FirebaseResponse}
+	 * @throws UnsupportedEncodingException
+	 * @throws {@link FirebaseException}
+	 */
+	public FirebaseResponse transaction( TransactionHandler handler ) throws FirebaseException, UnsupportedEncodingException {
+		return this.firebase.transaction( this.getPath(), handler );
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+
+		if( !(o instanceof FirebaseReference) ) {
+			return false;
+		}
+		FirebaseReference other = (FirebaseReference) o;
+		return this.firebase == other.firebase && this.urlPrefix.equals( other.urlPrefix );
+	}
+
+	@Override
+	public int hashCode() {
+		return this.urlPrefix.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return this.urlPrefix;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private boolean isRoot() {
+		return this.urlPrefix.length() == this.firebase.getBaseUrl().length();
+	}
+
+}
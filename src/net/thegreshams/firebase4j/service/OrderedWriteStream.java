@@ -0,0 +1,619 @@
+package net.thegreshams.firebase4j.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pipelines writes through a {@link Firebase}: up to N are in flight at once on its pooled connections,
+ * instead of each waiting for the one before.
+ *
+ * Order is kept where it matters: a write is not sent while an earlier write to an overlapping path (the
+ * same path, an ancestor, or a descendant) is still unfinished, so overlapping writes are applied in the
+ * order they were submitted. Writes to unrelated paths go in parallel. A {@link #post(String, String)} is
+ * written under a push-id generated on submission, so posts to one collection go in parallel yet still
+ * sort in the order they were submitted.
+ *
+ * Acknowledgements are delivered to the {@link Listener} strictly in submission order. Transient failures
+ * (see {@link FirebaseResponse#IS_RETRYABLE(int, int)}) are retried with backoff; a write that still fails
+ * stops the stream: no further writes are sent, and the listener is told of the failure once everything
+ * before it has been acknowledged. That write is the resume point: every write before it was applied, and it and those after
+ * it (see {@link #getUnacknowledged()}) may or may not have been. Since writes are idempotent (posts too,
+ * having their keys assigned up-front), {@link #resume()} simply sends them all again, in order.
+ */
+public class OrderedWriteStream {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	public static final int					DEFAULT_MAX_QUEUED		= 1024;
+
+	public static final int					MAX_RETRIES				= 5;
+
+	private static final long				MIN_RETRY_MILLIS		= 100;
+
+	private static final long				MAX_RETRY_MILLIS		= 5000;
+
+	/* only this many of the oldest unfinished writes are considered for sending, bounding each dispatch */
+	private static final int				DISPATCH_WINDOW			= 256;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Firebase firebase;
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final Listener listener;
+	private final ExecutorService executor;
+	private final Object deliveryLock = new Object();
+
+	/* guarded by this */
+	private final LinkedList<Write> unfinished = new LinkedList<Write>();
+	private final LinkedList<Write> unacknowledged = new LinkedList<Write>();
+	private long nextSequence = 0;
+	private int inFlight = 0;
+	private Write failure = null;
+	private boolean failureDelivered = false;
+	private boolean closed = false;
+
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * @param firebase -- to write through
+	 * @param maxInFlight -- the most writes in flight at once
+	 * @param listener -- told of acknowledgements and failure, in order; can be null
+	 * @throws {@link FirebaseException} if firebase is null
+	 */
+	public OrderedWriteStream( Firebase firebase, int maxInFlight, Listener listener ) throws FirebaseException {
+		this( firebase, maxInFlight, DEFAULT_MAX_QUEUED, listener );
+	}
+
+	/**
+	 * @param firebase -- to write through
+	 * @param maxInFlight -- the most writes in flight at once
+	 * @param maxQueued -- the most unfinished writes; beyond that, submitting blocks
+	 * @param listener -- told of acknowledgements and failure, in order; can be null
+	 * @throws {@link FirebaseException} if firebase is null
+	 */
+	public OrderedWriteStream( Firebase firebase, int maxInFlight, int maxQueued, Listener listener ) throws FirebaseException {
+
+		if( firebase == null ) {
+			String msg = "firebase cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		this.firebase = firebase;
+		this.maxInFlight = Math.max( 1, maxInFlight );
+		this.maxQueued = Math.max( this.maxInFlight, maxQueued );
+		this.listener = listener;
+		this.executor = Executors.newFixedThreadPool( this.maxInFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread result = new Thread( r, "firebase4j-write-stream" );
+				result.setDaemon( true );
+				return result;
+			}
+		});
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Queues a PUT of data to the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param jsonData -- can be null/empty
+	 * @return the queued {@link Write}
+	 * @throws {@link FirebaseException} if the stream has failed or is closed, or the wait for room was interrupted
+	 */
+	public Write put( String path, String jsonData ) throws FirebaseException {
+		return this.submit( FirebaseRestMethod.PUT, path, jsonData );
+	}
+
+	/**
+	 * Queues a PATCH of data on the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param jsonData -- a json-object
+	 * @return the queued {@link Write}
+	 * @throws {@link FirebaseException} if the stream has failed or is closed, or the wait for room was interrupted
+	 */
+	public Write patch( String path, String jsonData ) throws FirebaseException {
+		return this.submit( FirebaseRestMethod.PATCH, path, jsonData );
+	}
+
+	/**
+	 * Queues an insert of data under the provided-path relative to the base-url, keyed by a push-id
+	 * generated now (see {@link Write#getKey()}); it is sent as a PUT, so can be safely re-sent.
+	 *
+	 * @param path -- if null/empty, refers to the base-url
+	 * @param jsonData -- can be null/empty
+	 * @return the queued {@link Write}
+	 * @throws {@link FirebaseException} if the stream has failed or is closed, or the wait for room was interrupted
+	 */
+	public Write post( String path, String jsonData ) throws FirebaseException {
+
+		String normalized = OrderedWriteStream.normalizePath( path );
+		String key = PushIdGenerator.NEXT_PUSH_ID();
+		return this.submit( FirebaseRestMethod.PUT, normalized.isEmpty() ? key : normalized + "/" + key, jsonData );
+	}
+
+	/**
+	 * Queues a DELETE of the data at the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to the base-url
+	 * @return the queued {@link Write}
+	 * @throws {@link FirebaseException} if the stream has failed or is closed, or the wait for room was interrupted
+	 */
+	public Write delete( String path ) throws FirebaseException {
+		return this.submit( FirebaseRestMethod.DELETE, path, null );
+	}
+
+	/**
+	 * Waits until every write submitted so far is acknowledged, or the stream fails.
+	 *
+	 * @param timeoutMillis -- the longest to wait
+	 * @return true if every write was acknowledged; false if the stream failed or the wait timed-out
+	 * @throws {@link FirebaseException} if the wait was interrupted
+	 */
+	public boolean awaitAcknowledged( long timeoutMillis ) throws FirebaseException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized( this ) {
+			try {
+				while( !this.unacknowledged.isEmpty() && !this.failureDelivered ) {
+					long remaining = deadline - System.currentTimeMillis();
+					if( remaining <= 0 ) {
+						return false;
+					}
+					this.wait( remaining );
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				String msg = "interrupted while waiting for acknowledgements";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, e );
+			}
+			return this.unacknowledged.isEmpty();
+		}
+	}
+
+	/**
+	 * Sends again, in order, every write from the resume point on, and carries on as before.
+	 *
+	 * @throws {@link FirebaseException} if the stream has not failed, is closed, or the wait for writes still
+	 * 			in flight was interrupted
+	 */
+	public void resume() throws FirebaseException {
+
+		synchronized( this ) {
+
+			if( this.failure == null || this.closed ) {
+				String msg = this.closed ? "stream is closed" : "stream has not failed";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg );
+			}
+
+			// let what's in flight land first, so nothing is sent twice at once
+			try {
+				while( this.inFlight > 0 ) {
+					this.wait();
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				String msg = "interrupted while waiting for writes in flight";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, e );
+			}
+
+			LOGGER.info( "resuming stream from write " + this.failure.sequence + "; re-sending " + this.unacknowledged.size() + " writes" );
+			this.unfinished.clear();
+			for( Write write : this.unacknowledged ) {
+				write.reset();
+				this.unfinished.add( write );
+			}
+			this.failure = null;
+			this.failureDelivered = false;
+			this.dispatch();
+		}
+	}
+
+	/**
+	 * Returns the writes from the resume point on, in order; empty unless the stream has failed (or has
+	 * writes still to be acknowledged).
+	 *
+	 * @return the unacknowledged writes
+	 */
+	public synchronized List<Write> getUnacknowledged() {
+		return Collections.unmodifiableList( new ArrayList<Write>( this.unacknowledged ) );
+	}
+
+	/**
+	 * Returns the sequence-number of the first write not yet acknowledged.
+	 *
+	 * @return the sequence-number; if everything was acknowledged, that of the next write to be submitted
+	 */
+	public synchronized long getResumePoint() {
+		return this.unacknowledged.isEmpty() ? this.nextSequence : this.unacknowledged.getFirst().sequence;
+	}
+
+	/**
+	 * Returns whether a write failed, stopping the stream until {@link #resume()}.
+	 *
+	 * @return true if failed
+	 */
+	public synchronized boolean isFailed() {
+		return this.failure != null;
+	}
+
+	/**
+	 * Returns the number of writes acknowledged.
+	 *
+	 * @return the number of acknowledged writes
+	 */
+	public long getAcknowledgedCount() {
+		return this.acknowledged.get();
+	}
+
+	/**
+	 * Returns the number of writes in flight.
+	 *
+	 * @return the number of in-flight writes
+	 */
+	public synchronized int getInFlightCount() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Stops the stream; writes not yet sent never will be. Call {@link #awaitAcknowledged(long)} first to
+	 * let them finish.
+	 */
+	public void close() {
+
+		synchronized( this ) {
+			this.closed = true;
+			this.notifyAll();
+		}
+		this.executor.shutdown();
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( OrderedWriteStream.class.getSimpleName() + "[ " )
+				.append( "(In-flight:" ).append( this.inFlight ).append( "/" ).append( this.maxInFlight ).append( ") " )
+				.append( "(Unacknowledged:" ).append( this.unacknowledged.size() ).append( ") " )
+				.append( "(Acknowledged:" ).append( this.acknowledged.get() ).append( ") " )
+				.append( "(Retries:" ).append( this.retries.get() ).append( ") " )
+				.append( "(Failed-at:" ).append( this.failure != null ? this.failure.sequence : -1 ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private synchronized Write submit( FirebaseRestMethod method, String path, String jsonData ) throws FirebaseException {
+
+		try {
+			while( !this.closed && this.failure == null && this.unfinished.size() >= this.maxQueued ) {
+				this.wait();
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			String msg = "interrupted while waiting for room in the stream";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+		}
+		if( this.closed || this.failure != null ) {
+			String msg = this.closed ? "stream is closed" : "stream failed at write " + this.failure.sequence + "; resume() it first";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		Write result = new Write( this.nextSequence++, method, OrderedWriteStream.normalizePath(path), jsonData );
+		this.unfinished.add( result );
+		this.unacknowledged.add( result );
+		this.dispatch();
+
+		return result;
+	}
+
+	/* sends every write that is not held back by an earlier overlapping one, up to the in-flight limit */
+	private void dispatch() {
+
+		if( this.failure != null || this.closed ) {
+			return;
+		}
+
+		List<Write> earlier = new ArrayList<Write>();
+		Iterator<Write> it = this.unfinished.iterator();
+		for( int i = 0; i < DISPATCH_WINDOW && this.inFlight < this.maxInFlight && it.hasNext(); i++ ) {
+
+			Write write = it.next();
+			if( !write.sent && !OrderedWriteStream.overlapsAny( write, earlier ) ) {
+				write.sent = true;
+				this.inFlight++;
+				final Write toSend = write;
+				this.executor.execute( new Runnable() {
+					@Override
+					public void run() {
+						OrderedWriteStream.this.send( toSend );
+					}
+				});
+			}
+			earlier.add( write );
+		}
+	}
+
+	/* runs on a stream thread; retries transient failures, then records the outcome */
+	private void send( Write write ) {
+
+		FirebaseResponse response = null;
+		FirebaseException error = null;
+		long retryMillis = MIN_RETRY_MILLIS;
+		for( int attempt = 0; ; attempt++ ) {
+
+			response = null;
+			error = null;
+			try {
+				response = this.firebase.writeIsolated( write.method, write.path, write.jsonData );
+			} catch( FirebaseException e ) {
+				error = e;
+			} catch( Throwable t ) {
+				error = new FirebaseException( "unable to send write " + write.sequence, t );
+			}
+
+			int code = response != null ? response.getCode() : 0;
+			if( response != null && response.getSuccess() ) {
+				break;
+			}
+			if( !FirebaseResponse.IS_RETRYABLE(code, attempt + 1) || attempt >= MAX_RETRIES || this.isClosed() ) {
+				LOGGER.error( "write " + write.sequence + " to '" + write.path + "' failed (" + code + ")" );
+				break;
+			}
+
+			LOGGER.warn( "write " + write.sequence + " to '" + write.path + "' failed (" + code + "); retrying in " + retryMillis + "ms" );
+			this.retries.incrementAndGet();
+			try {
+				Thread.sleep( retryMillis );
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				error = new FirebaseException( "interrupted while retrying write " + write.sequence, e );
+				response = null;
+				break;
+			}
+			retryMillis = Math.min( MAX_RETRY_MILLIS, retryMillis * 2 );
+		}
+
+		boolean success = error == null && response != null && response.getSuccess();
+		synchronized( this ) {
+
+			write.done = true;
+			write.response = response;
+			write.error = error;
+			write.success = success;
+			this.unfinished.remove( write );
+			this.inFlight--;
+			if( !success && (this.failure == null || write.sequence < this.failure.sequence) ) {
+				this.failure = write;
+			}
+			this.dispatch();
+			this.notifyAll();
+
+		}
+
+		this.deliver();
+	}
+
+	/* hands acknowledgements (and the failure, if any) to the listener, in order and one thread at a time */
+	private void deliver() {
+
+		synchronized( this.deliveryLock ) {
+
+			List<Write> ready = new ArrayList<Write>();
+			Write failed = null;
+			synchronized( this ) {
+
+				while( !this.unacknowledged.isEmpty() && this.unacknowledged.getFirst().done ) {
+					Write head = this.unacknowledged.getFirst();
+					if( !head.success ) {
+						// everything before the failure is acknowledged; it must also have landed before telling
+						if( !this.failureDelivered && this.failure == head && this.inFlight == 0 ) {
+							this.failureDelivered = true;
+							failed = head;
+						}
+						break;
+					}
+					ready.add( this.unacknowledged.removeFirst() );
+				}
+				this.acknowledged.addAndGet( ready.size() );
+				this.notifyAll();
+
+			}
+
+			if( this.listener == null ) {
+				return;
+			}
+			for( Write write : ready ) {
+				try {
+					this.listener.onAcknowledged( write, write.response );
+				} catch( Throwable t ) {
+					LOGGER.error( "listener failed on acknowledgement of write " + write.sequence, t );
+				}
+			}
+			if( failed != null ) {
+				try {
+					this.listener.onFailed( failed, failed.response, failed.error );
+				} catch( Throwable t ) {
+					LOGGER.error( "listener failed on failure of write " + failed.sequence, t );
+				}
+			}
+		}
+	}
+
+	private synchronized boolean isClosed() {
+		return this.closed;
+	}
+
+	private static boolean overlapsAny( Write write, List<Write> earlier ) {
+
+		for( Write other : earlier ) {
+			String a = write.path;
+			String b = other.path;
+			if( a.isEmpty() || b.isEmpty() || a.equals( b ) || a.startsWith( b + "/" ) || b.startsWith( a + "/" ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String normalizePath( String path ) {
+
+		StringBuilder result = new StringBuilder();
+		if( path != null ) {
+			for( String segment : path.split( "/" ) ) {
+				segment = segment.trim();
+				if( !segment.isEmpty() ) {
+					result.append( result.length() == 0 ? "" : "/" ).append( segment );
+				}
+			}
+		}
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Told of the outcome of each write, in the order they were submitted; called from the stream's
+	 * threads, one call at a time.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param write -- the acknowledged write
+		 * @param response -- the service's response
+		 */
+		public void onAcknowledged( Write write, FirebaseResponse response );
+
+		/**
+		 * Called once the stream fails; every earlier write has been acknowledged.
+		 *
+		 * @param write -- the failed write (ie: the resume point)
+		 * @param response -- the service's last response, or null if there was none
+		 * @param error -- why there was no response, or null if there was one
+		 */
+		public void onFailed( Write write, FirebaseResponse response, FirebaseException error );
+	}
+
+	/**
+	 * One write submitted to the stream.
+	 */
+	public static final class Write {
+
+		private final long sequence;
+		private final FirebaseRestMethod method;
+		private final String path;
+		private final String jsonData;
+
+		/* guarded by the stream */
+		boolean sent;
+		boolean done;
+		boolean success;
+		FirebaseResponse response;
+		FirebaseException error;
+
+		Write( long sequence, FirebaseRestMethod method, String path, String jsonData ) {
+			this.sequence = sequence;
+			this.method = method;
+			this.path = path;
+			this.jsonData = jsonData;
+		}
+
+		void reset() {
+			this.sent = false;
+			this.done = false;
+			this.success = false;
+			this.response = null;
+			this.error = null;
+		}
+
+		/**
+		 * @return the position of this write in the stream, from 0
+		 */
+		public long getSequence() {
+			return this.sequence;
+		}
+
+		public FirebaseRestMethod getMethod() {
+			return this.method;
+		}
+
+		/**
+		 * @return the path written, relative to the base-url; for a post, includes the generated key
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		/**
+		 * @return the last segment of the path (ie: the generated key of a post)
+		 */
+		public String getKey() {
+			return this.path.substring( this.path.lastIndexOf('/') + 1 );
+		}
+
+		public String getJsonData() {
+			return this.jsonData;
+		}
+
+		@Override
+		public String toString() {
+			return Write.class.getSimpleName() + "[ (Sequence:" + this.sequence + ") (" + this.method + " " + this.path + ") ]";
+		}
+	}
+
+}
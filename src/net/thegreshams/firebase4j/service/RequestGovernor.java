@@ -0,0 +1,349 @@
+package net.thegreshams.firebase4j.service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Client-side limits for the requests of a {@link Firebase}: a token-bucket on requests-per-second, a
+ * token-bucket on bytes-per-second (request and response bodies), and a cap on concurrent in-flight requests.
+ *
+ * Acquisition is either blocking (waits up to a maximum time for capacity) or non-blocking (fails at once).
+ * The request-rate adapts: it is halved (at most once per second) when the service answers 429/503, honors any
+ * Retry-After, and climbs back towards the configured rate with every successful response.
+ *
+ * Any limit that is zero or negative is treated as unlimited. Instances are thread-safe and may be shared by
+ * several {@link Firebase} objects that should be governed together.
+ */
+public class RequestGovernor {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	private static final long				NANOS_PER_SECOND		= TimeUnit.SECONDS.toNanos( 1 );
+
+	/* rate never backs off below this fraction of the configured rate */
+	private static final double				MIN_RATE_FRACTION		= 0.05;
+
+	/* fraction of the configured rate regained per successful response */
+	private static final double				RECOVERY_FRACTION		= 0.02;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final double maxRequestsPerSecond;
+	private final long maxBytesPerSecond;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+
+	private boolean blocking = true;
+	private long maxWaitMillis = 30000;
+
+	/* guarded by this */
+	private double requestsPerSecond;
+	private double requestTokens;
+	private double byteTokens;
+	private long lastRefill;
+	private long pausedUntil;
+	private long lastBackoff;
+
+	private final AtomicLong throttledResponses = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param maxRequestsPerSecond -- sustained request-rate; bursts of up to one second's worth are allowed
+	 * @param maxBytesPerSecond -- sustained request+response body bytes
+	 * @param maxInFlight -- concurrent requests
+	 */
+	public RequestGovernor( double maxRequestsPerSecond, long maxBytesPerSecond, int maxInFlight ) {
+
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = maxInFlight > 0 ? new Semaphore( maxInFlight, true ) : null;
+
+		this.requestsPerSecond = maxRequestsPerSecond;
+		this.requestTokens = Math.max( 1, maxRequestsPerSecond );
+		this.byteTokens = maxBytesPerSecond;
+		this.lastRefill = System.nanoTime();
+		this.pausedUntil = this.lastRefill;
+		this.lastBackoff = this.lastRefill - NANOS_PER_SECOND;
+
+		LOGGER.info( "initialized governor: " + this );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Whether {@link #acquire(long)} waits for capacity (the default) or fails at once when there is none.
+	 *
+	 * @param blocking -- true to wait
+	 * @return RequestGovernor -- return this RequestGovernor object
+	 */
+	public RequestGovernor setBlocking( boolean blocking ) {
+		this.blocking = blocking;
+		return this;
+	}
+
+	/**
+	 * The longest a blocking {@link #acquire(long)} waits before failing (default: 30 seconds).
+	 *
+	 * @param maxWaitMillis -- milliseconds
+	 * @return RequestGovernor -- return this RequestGovernor object
+	 */
+	public RequestGovernor setMaxWaitMillis( long maxWaitMillis ) {
+		this.maxWaitMillis = maxWaitMillis;
+		return this;
+	}
+
+	/**
+	 * Acquires capacity for one request, blocking or not as configured.
+	 *
+	 * @param requestBytes -- size of the request-body
+	 * @return a {@link Permit} that must be handed back to {@link #release(Permit, int, long, long)}
+	 * @throws {@link FirebaseException} if there is no capacity (non-blocking), the wait timed-out, or was interrupted
+	 */
+	public Permit acquire( long requestBytes ) throws FirebaseException {
+
+		long waitMillis = this.blocking ? this.maxWaitMillis : 0;
+		Permit result = this.tryAcquire( requestBytes, waitMillis );
+		if( result == null ) {
+			this.rejected.incrementAndGet();
+			String msg = "no request capacity available" + (waitMillis > 0 ? " within " + waitMillis + "ms" : "") + "; " + this;
+			LOGGER.warn( msg );
+			throw new FirebaseException( msg );
+		}
+
+		return result;
+	}
+
+	/**
+	 * Acquires capacity for one request, waiting up to the provided time.
+	 *
+	 * @param requestBytes -- size of the request-body
+	 * @param waitMillis -- if zero, does not wait at all
+	 * @return a {@link Permit}, or null if there was no capacity in time
+	 * @throws {@link FirebaseException} if the wait was interrupted
+	 */
+	public Permit tryAcquire( long requestBytes, long waitMillis ) throws FirebaseException {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( Math.max(waitMillis, 0) );
+		try {
+
+			if( this.inFlight != null && !this.inFlight.tryAcquire( waitMillis, TimeUnit.MILLISECONDS ) ) {
+				return null;
+			}
+
+			while( true ) {
+				long waitNanos = this.takeTokens( requestBytes );
+				if( waitNanos <= 0 ) {
+					return new Permit();
+				}
+				long remaining = deadline - System.nanoTime();
+				if( remaining <= 0 ) {
+					break;
+				}
+				TimeUnit.NANOSECONDS.sleep( Math.min( waitNanos, remaining ) );
+			}
+
+		} catch( InterruptedException e ) {
+
+			Thread.currentThread().interrupt();
+			if( this.inFlight != null ) {
+				this.inFlight.release();
+			}
+			String msg = "interrupted while waiting for request capacity";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+
+		}
+
+		if( this.inFlight != null ) {
+			this.inFlight.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns capacity taken by {@link #acquire(long)}, and adapts the request-rate to the response.
+	 *
+	 * @param permit -- as returned by acquire; releasing a permit more than once has no effect
+	 * @param code -- http-code of the response, or 0 if there was none
+	 * @param responseBytes -- size of the response-body
+	 * @param retryAfterMillis -- the response's Retry-After, or 0 if it had none
+	 */
+	public void release( Permit permit, int code, long responseBytes, long retryAfterMillis ) {
+
+		if( permit == null || !permit.released.compareAndSet( false, true ) ) {
+			return;
+		}
+		if( this.inFlight != null ) {
+			this.inFlight.release();
+		}
+
+		synchronized( this ) {
+
+			if( this.maxBytesPerSecond > 0 ) {
+				this.byteTokens -= responseBytes; // may go into debt; later requests wait it out
+			}
+
+			long now = System.nanoTime();
+			if( FirebaseResponse.IS_THROTTLED(code) ) {
+
+				this.throttledResponses.incrementAndGet();
+				if( retryAfterMillis > 0 ) {
+					this.pausedUntil = Math.max( this.pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis) );
+				}
+				if( this.maxRequestsPerSecond > 0 && now - this.lastBackoff >= NANOS_PER_SECOND ) {
+					this.lastBackoff = now;
+					this.requestsPerSecond = Math.max( this.maxRequestsPerSecond * MIN_RATE_FRACTION, this.requestsPerSecond / 2 );
+					this.requestTokens = Math.min( this.requestTokens, 0 );
+					LOGGER.warn( "throttled by service (" + code + "); backing off to " + this.requestsPerSecond + " requests/second" );
+				}
+
+			} else if( FirebaseResponse.IS_SUCCESS(code) && this.requestsPerSecond < this.maxRequestsPerSecond ) {
+
+				this.requestsPerSecond = Math.min( this.maxRequestsPerSecond,
+						this.requestsPerSecond + this.maxRequestsPerSecond * RECOVERY_FRACTION );
+			}
+		}
+	}
+
+	/**
+	 * Returns the current (possibly backed-off) request-rate.
+	 *
+	 * @return requests per second, or zero/negative if unlimited
+	 */
+	public synchronized double getRequestsPerSecond() {
+		return this.requestsPerSecond;
+	}
+
+	/**
+	 * Returns the number of requests currently holding a permit.
+	 *
+	 * @return the number of in-flight requests, or 0 if concurrency is unlimited
+	 */
+	public int getInFlightCount() {
+		return this.inFlight == null ? 0 : this.maxInFlight - this.inFlight.availablePermits();
+	}
+
+	/**
+	 * Returns the number of 429/503 responses seen.
+	 *
+	 * @return the number of throttled responses
+	 */
+	public long getThrottledCount() {
+		return this.throttledResponses.get();
+	}
+
+	/**
+	 * Returns the number of acquisitions that failed for lack of capacity.
+	 *
+	 * @return the number of rejected requests
+	 */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( RequestGovernor.class.getSimpleName() + "[ " )
+				.append( "(Requests/s:" ).append( this.getRequestsPerSecond() ).append( "/" ).append( this.maxRequestsPerSecond ).append( ") " )
+				.append( "(Bytes/s:" ).append( this.maxBytesPerSecond ).append( ") " )
+				.append( "(In-flight:" ).append( this.getInFlightCount() ).append( "/" ).append( this.maxInFlight ).append( ") " )
+				.append( "(Throttled:" ).append( this.throttledResponses.get() ).append( ") " )
+				.append( "(Rejected:" ).append( this.rejected.get() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/* takes a request-token (and the request's bytes) if available; otherwise returns how long to wait */
+	private synchronized long takeTokens( long requestBytes ) {
+
+		long now = System.nanoTime();
+		double elapsed = (double) (now - this.lastRefill) / NANOS_PER_SECOND;
+		this.lastRefill = now;
+
+		if( this.requestsPerSecond > 0 ) {
+			this.requestTokens = Math.min( Math.max(1, this.requestsPerSecond), this.requestTokens + elapsed * this.requestsPerSecond );
+		}
+		if( this.maxBytesPerSecond > 0 ) {
+			this.byteTokens = Math.min( this.maxBytesPerSecond, this.byteTokens + elapsed * this.maxBytesPerSecond );
+		}
+
+		if( now - this.pausedUntil < 0 ) {
+			return this.pausedUntil - now;
+		}
+
+		long wait = 0;
+		if( this.requestsPerSecond > 0 && this.requestTokens < 1 ) {
+			wait = Math.max( wait, (long) ((1 - this.requestTokens) / this.requestsPerSecond * NANOS_PER_SECOND) );
+		}
+		if( this.maxBytesPerSecond > 0 && this.byteTokens <= 0 ) {
+			wait = Math.max( wait, (long) ((1 - this.byteTokens) / this.maxBytesPerSecond * NANOS_PER_SECOND) );
+		}
+		if( wait > 0 ) {
+			return wait;
+		}
+
+		if( this.requestsPerSecond > 0 ) {
+			this.requestTokens -= 1;
+		}
+		if( this.maxBytesPerSecond > 0 ) {
+			this.byteTokens -= requestBytes; // a body larger than the bucket just puts it into debt
+		}
+		return 0;
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Capacity held by one request between acquire and release.
+	 */
+	public static class Permit {
+
+		private final AtomicBoolean released = new AtomicBoolean( false );
+
+		private Permit() {
+		}
+	}
+
+}
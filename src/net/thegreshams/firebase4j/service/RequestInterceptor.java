@@ -0,0 +1,42 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Sees every request a {@link Firebase} makes, just before it is sent and just after it completes;
+ * added with {@link Firebase#addInterceptor(RequestInterceptor)}.
+ *
+ * Before sending, an interceptor may change the request: add or replace headers (ie: 'Accept',
+ * 'X-Firebase-ETag'), rewrite its URI (ie: add a query parameter), or refuse it by throwing. Interceptors
+ * are called in the order they were added, from whichever thread makes the request, so they should be
+ * thread-safe and quick.
+ *
+ * {@link #afterResponse} is called exactly once for every {@link #beforeRequest} that returned normally,
+ * whether the request succeeded or failed (ie: a transport error, a response over the size-limit, a body
+ * that could not be parsed, or a refusal by a later interceptor); so anything opened before a request
+ * (a timer, a trace-span, an in-flight count) can always be closed after it.
+ */
+public interface RequestInterceptor {
+
+	/**
+	 * @param method -- the REST method of the request
+	 * @param request -- the request about to be sent; can be changed
+	 * @throws {@link FirebaseException} to refuse the request, which is then not sent
+	 */
+	public void beforeRequest( FirebaseRestMethod method, HttpRequestBase request ) throws FirebaseException;
+
+	/**
+	 * @param method -- the REST method of the request
+	 * @param request -- the request that was sent (or was to be sent)
+	 * @param response -- its response, already read; null if the request failed
+	 * @param error -- why the request failed, which the caller will see; null if it did not
+	 * @throws {@link FirebaseException} to fail a request that did not already fail, despite its response
+	 */
+	public void afterResponse( FirebaseRestMethod method, HttpRequestBase request, FirebaseResponse response,
+			FirebaseException error ) throws FirebaseException;
+
+}
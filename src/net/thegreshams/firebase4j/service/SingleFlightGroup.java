@@ -0,0 +1,181 @@
+package net.thegreshams.firebase4j.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collapses concurrent identical requests into one: the first caller for a key makes the request, and every
+ * caller that arrives with the same key while it is in flight waits for, and receives, the same response
+ * (or the same exception).
+ *
+ * Note the shared {@link FirebaseResponse} (and its body) is handed to every waiting caller, so callers should
+ * treat it as read-only.
+ */
+public class SingleFlightGroup {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong collapsed = new AtomicLong();
+
+	public SingleFlightGroup() {
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Makes the request for the provided key, unless one is already in flight, in which case waits for
+	 * that one instead.
+	 *
+	 * @param key -- identifies the request (ie: the full url)
+	 * @param request -- makes the request; only called by the first caller for a key
+	 * @return {@link FirebaseResponse}
+	 * @throws {@link FirebaseException} if the request failed, or the wait was interrupted
+	 */
+	public FirebaseResponse execute( String key, Request request ) throws FirebaseException {
+
+		this.calls.incrementAndGet();
+
+		Flight flight = new Flight();
+		Flight existing = this.inFlight.putIfAbsent( key, flight );
+		if( existing != null ) {
+			this.collapsed.incrementAndGet();
+			return existing.await( key );
+		}
+
+		try {
+
+			flight.response = request.execute();
+
+		} catch( FirebaseException e ) {
+
+			flight.error = e;
+			throw e;
+
+		} catch( RuntimeException e ) {
+
+			flight.error = new FirebaseException( "request failed for key '" + key + "'", e );
+			throw e;
+
+		} catch( Error e ) {
+
+			flight.error = new FirebaseException( "request failed for key '" + key + "'", e );
+			throw e;
+
+		} finally {
+
+			this.inFlight.remove( key, flight );
+			flight.done.countDown();
+
+		}
+
+		return flight.response;
+	}
+
+	/**
+	 * Returns the number of requests made through this group, including collapsed ones.
+	 *
+	 * @return the number of calls
+	 */
+	public long getCallCount() {
+		return this.calls.get();
+	}
+
+	/**
+	 * Returns the number of requests that were collapsed into one already in flight (ie: round trips saved).
+	 *
+	 * @return the number of collapsed calls
+	 */
+	public long getCollapsedCount() {
+		return this.collapsed.get();
+	}
+
+	/**
+	 * Returns the number of distinct requests currently in flight.
+	 *
+	 * @return the number of in-flight requests
+	 */
+	public int getInFlightCount() {
+		return this.inFlight.size();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( SingleFlightGroup.class.getSimpleName() + "[ " )
+				.append( "(Calls:" ).append( this.calls.get() ).append( ") " )
+				.append( "(Collapsed:" ).append( this.collapsed.get() ).append( ") " )
+				.append( "(In-flight:" ).append( this.inFlight.size() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * The request to be made on behalf of every caller sharing a key.
+	 */
+	public interface Request {
+
+		FirebaseResponse execute() throws FirebaseException;
+	}
+
+	private static class Flight {
+
+		final CountDownLatch done = new CountDownLatch( 1 );
+		volatile FirebaseResponse response;
+		volatile FirebaseException error;
+
+		FirebaseResponse await( String key ) throws FirebaseException {
+
+			try {
+				this.done.await();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				String msg = "interrupted while waiting for in-flight request for key '" + key + "'";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg, e );
+			}
+
+			if( this.error != null ) {
+				throw new FirebaseException( "shared in-flight request failed for key '" + key + "'", this.error );
+			}
+			return this.response;
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package net.thegreshams.firebase4j.service;
+
+/**
+ * An {@link AuthTokenProvider} for a token that never changes (ie: a database secret).
+ */
+public class StaticAuthTokenProvider implements AuthTokenProvider {
+
+	private final String token;
+	
+	public StaticAuthTokenProvider( String token ) {
+		this.token = token;
+	}
+	
+	@Override
+	public String getToken() {
+		return this.token;
+	}
+	
+	@Override
+	public void onAuthFailure() {
+		// nothing to refresh
+	}
+	
+}
@@ -0,0 +1,25 @@
+package net.thegreshams.firebase4j.service;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+
+/**
+ * Computes the next value of a location from its current value, for {@link Firebase#transaction(String, TransactionHandler)}.
+ * 
+ * Values are whatever Jackson binds JSON to: a Map, List, String, Number, Boolean, or null (no data). The
+ * handler may be called several times, once per conflicting attempt, so it should not have side-effects.
+ */
+public interface TransactionHandler {
+
+	/**
+	 * Return this from {@link #apply(Object)} to abort the transaction without writing.
+	 */
+	public static final Object ABORT = new Object();
+	
+	/**
+	 * @param current -- the current value; null if there is no data
+	 * @return the value to write; null deletes the data; {@link #ABORT} aborts
+	 * @throws {@link FirebaseException} to abort the transaction with an error
+	 */
+	public Object apply( Object current ) throws FirebaseException;
+	
+}
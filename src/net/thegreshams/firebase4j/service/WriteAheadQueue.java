@@ -0,0 +1,969 @@
+package net.thegreshams.firebase4j.service;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase.FirebaseRestMethod;
+import net.thegreshams.firebase4j.util.JacksonUtility;
+import net.thegreshams.firebase4j.util.PushIdGenerator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A durable, local outbound queue for writes (PUT, PATCH, POST, DELETE) to a {@link Firebase}.
+ *
+ * Writes are appended to a log of memory-mapped segment files in a local directory and return as soon as they
+ * are in the log; a background thread drains the log to Firebase in order, so producers never wait on the
+ * network. Runs of consecutive PUTs, PATCHes and DELETEs are folded into a single multi-path PATCH at the
+ * root of the Firebase, as long as none of their paths is an ancestor of another. A POST is queued as a PUT
+ * under a push-id generated when it is queued, so it folds like any other write and is not duplicated when
+ * it is sent again after a crash.
+ *
+ * Each record is framed with its length and a CRC, and the drain position is kept in a memory-mapped
+ * checkpoint, so after a crash the queue resumes from the last acknowledged write and discards any torn tail.
+ * Delivery is at-least-once: a batch sent just before a crash may be sent again. By default a write is
+ * persisted once it is in the page-cache (which survives the process crashing); see
+ * {@link #setSyncOnWrite(boolean)} to also survive the machine crashing.
+ *
+ * A write Firebase answers with a retryable code (ie: 503) is retried with backoff, up to
+ * {@link #setMaxRetries(int)} times; a 401 is retried once only, since the token is refreshed after the
+ * first (see {@link FirebaseResponse#IS_RETRYABLE(int, int)}), and a 403 is a security-rules denial. A write that is refused outright, or
+ * for too long, is separated from any it was folded with, then logged and dropped, so it can never block
+ * the writes behind it. A write that can't reach Firebase at all is retried until it can.
+ *
+ * Paths are relative to the base-url of the Firebase. The drain thread leaves the Firebase's query and
+ * headers for the next request alone, so the same Firebase can be used from other threads meanwhile.
+ */
+public class WriteAheadQueue {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	public static final int					DEFAULT_SEGMENT_BYTES	= 16 * 1024 * 1024;
+
+	public static final long				DEFAULT_MAX_DISK_BYTES	= 1024L * 1024 * 1024;
+
+	public static final int					DEFAULT_MAX_BATCH		= 100;
+
+	public static final int					DEFAULT_MAX_RETRIES		= 20;
+
+	private static final int				MIN_SEGMENT_BYTES		= 4096;
+
+	private static final int				RECORD_HEADER_BYTES		= 8;
+
+	/* record-length marking the end of a segment; a length of 0 marks the end of the log */
+	private static final int				SEALED					= -1;
+
+	private static final byte				OP_PUT					= 1;
+	private static final byte				OP_PATCH				= 2;
+	private static final byte				OP_POST					= 3;
+	private static final byte				OP_DELETE				= 4;
+
+	private static final String				SEGMENT_PREFIX			= "segment-";
+	private static final String				SEGMENT_SUFFIX			= ".wal";
+	private static final String				CHECKPOINT_FILE			= "checkpoint";
+
+	private static final long				MIN_RETRY_MILLIS		= 100;
+	private static final long				MAX_RETRY_MILLIS		= TimeUnit.SECONDS.toMillis( 30 );
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Firebase firebase;
+	private final File directory;
+	private final int segmentBytes;
+	private final long maxDiskBytes;
+	private volatile int maxBatch = DEFAULT_MAX_BATCH;
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile boolean syncOnWrite = false;
+
+	/* guarded by this */
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment writeSegment;
+	private int writeOffset;
+	private boolean closed = false;
+
+	/* drain-thread only (once started) */
+	private Segment readSegment;
+	private int readOffset;
+	private final MappedByteBuffer checkpoint;
+	private Thread drainer;
+
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong drained = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	public WriteAheadQueue( Firebase firebase, File directory ) throws FirebaseException {
+		this( firebase, directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_DISK_BYTES );
+	}
+
+	/**
+	 * Opens (or creates) the queue in the provided directory, recovering any writes not yet drained.
+	 *
+	 * @param firebase -- where writes are drained to
+	 * @param directory -- holds the segment-files and checkpoint; one queue per directory
+	 * @param segmentBytes -- size of each segment-file; a single write must fit in one
+	 * @param maxDiskBytes -- writes fail once the undrained segments would exceed this
+	 * @throws {@link FirebaseException} if the directory could not be opened
+	 */
+	public WriteAheadQueue( Firebase firebase, File directory, int segmentBytes, long maxDiskBytes ) throws FirebaseException {
+
+		if( firebase == null || directory == null ) {
+			String msg = "firebase and directory cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		if( !directory.isDirectory() && !directory.mkdirs() ) {
+			String msg = "unable to create queue-directory: " + directory;
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+		this.firebase = firebase;
+		this.directory = directory;
+		this.segmentBytes = Math.max( MIN_SEGMENT_BYTES, segmentBytes );
+		this.maxDiskBytes = maxDiskBytes;
+
+		try {
+
+			this.checkpoint = WriteAheadQueue.map( new File(directory, CHECKPOINT_FILE), 16 );
+			this.recover();
+
+		} catch( IOException e ) {
+
+			String msg = "unable to open queue in: " + directory;
+			LOGGER.error( msg );
+			throw new FirebaseException( msg, e );
+
+		}
+
+		LOGGER.info( "opened write-ahead queue in '" + directory + "' with " + this.pending.get() + " pending writes" );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Force every write to disk before it is acknowledged (slower, but survives the machine crashing).
+	 *
+	 * @param syncOnWrite -- true to force each write to disk
+	 * @return WriteAheadQueue -- return this WriteAheadQueue object
+	 */
+	public WriteAheadQueue setSyncOnWrite( boolean syncOnWrite ) {
+		this.syncOnWrite = syncOnWrite;
+		return this;
+	}
+
+	/**
+	 * The most writes drained in one go (and so folded into one request).
+	 *
+	 * @param maxBatch -- at least 1
+	 * @return WriteAheadQueue -- return this WriteAheadQueue object
+	 */
+	public WriteAheadQueue setMaxBatch( int maxBatch ) {
+		this.maxBatch = Math.max( 1, maxBatch );
+		return this;
+	}
+
+	/**
+	 * The most times a write answered with a retryable code is sent again before it is dropped (default:
+	 * {@link #DEFAULT_MAX_RETRIES}); attempts are counted from when the queue was opened.
+	 *
+	 * @param maxRetries -- at least 0
+	 * @return WriteAheadQueue -- return this WriteAheadQueue object
+	 */
+	public WriteAheadQueue setMaxRetries( int maxRetries ) {
+		this.maxRetries = Math.max( 0, maxRetries );
+		return this;
+	}
+
+	/**
+	 * Starts draining the queue to Firebase in the background.
+	 *
+	 * @return WriteAheadQueue -- return this WriteAheadQueue object
+	 */
+	public synchronized WriteAheadQueue start() {
+
+		if( this.drainer == null && !this.closed ) {
+			this.drainer = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					WriteAheadQueue.this.drain();
+				}
+			}, "firebase4j-write-ahead-queue" );
+			this.drainer.setDaemon( true );
+			this.drainer.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Stops draining and releases the segment-files; anything undrained is picked up when the queue is
+	 * next opened.
+	 */
+	public void close() {
+
+		Thread drainer;
+		synchronized( this ) {
+			this.closed = true;
+			this.notifyAll();
+			drainer = this.drainer;
+		}
+		if( drainer != null ) {
+			drainer.interrupt();
+			try {
+				drainer.join( TimeUnit.SECONDS.toMillis(5) );
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.checkpoint.force();
+		synchronized( this ) {
+			for( Segment segment : this.segments.values() ) {
+				segment.buffer.force();
+				segment.close();
+			}
+		}
+	}
+
+	/**
+	 * Queues a PUT of the provided data to the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param jsonData -- can be null/empty
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 */
+	public void put( String path, String jsonData ) throws FirebaseException {
+		this.append( OP_PUT, path, jsonData );
+	}
+
+	/**
+	 * Queues a PUT of the provided data to the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param data -- can be null/empty
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 * @throws {@link JacksonUtilityException}
+	 */
+	public void put( String path, Map<String, Object> data ) throws FirebaseException, JacksonUtilityException {
+		this.append( OP_PUT, path, JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * Queues a PATCH of the provided data on the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param jsonData -- a json-object
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 */
+	public void patch( String path, String jsonData ) throws FirebaseException {
+		this.append( OP_PATCH, path, jsonData );
+	}
+
+	/**
+	 * Queues a PATCH of the provided data on the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param data -- can be null/empty
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 * @throws {@link JacksonUtilityException}
+	 */
+	public void patch( String path, Map<String, Object> data ) throws FirebaseException, JacksonUtilityException {
+		this.append( OP_PATCH, path, JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * Queues an insert of the provided data under the provided-path relative to the base-url, keyed by a
+	 * push-id generated now; it is sent as a PUT, so sending it again after a crash does not duplicate it.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param jsonData -- can be null/empty but will result in no data being written
+	 * @return the generated key
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 */
+	public String post( String path, String jsonData ) throws FirebaseException {
+
+		String normalized = WriteAheadQueue.normalizePath( path );
+		String key = PushIdGenerator.NEXT_PUSH_ID();
+		this.append( OP_PUT, normalized.isEmpty() ? key : normalized + "/" + key, jsonData );
+		return key;
+	}
+
+	/**
+	 * Queues an insert of the provided data under the provided-path relative to the base-url; see
+	 * {@link #post(String, String)}.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @param data -- can be null/empty but will result in no data being written
+	 * @return the generated key
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 * @throws {@link JacksonUtilityException}
+	 */
+	public String post( String path, Map<String, Object> data ) throws FirebaseException, JacksonUtilityException {
+		return this.post( path, JacksonUtility.GET_JSON_STRING_FROM_MAP( data ) );
+	}
+
+	/**
+	 * Queues a DELETE of the provided-path relative to the base-url.
+	 *
+	 * @param path -- if null/empty, refers to base-url
+	 * @throws {@link FirebaseException} if the queue is full or closed
+	 */
+	public void delete( String path ) throws FirebaseException {
+		this.append( OP_DELETE, path, null );
+	}
+
+	/**
+	 * Waits for every write queued so far to be drained (or dropped).
+	 *
+	 * @param timeoutMillis -- the longest to wait
+	 * @return true if the queue drained in time
+	 * @throws {@link FirebaseException} if the wait was interrupted
+	 */
+	public boolean awaitDrained( long timeoutMillis ) throws FirebaseException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized( this ) {
+			while( this.pending.get() > 0 ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if( remaining <= 0 ) {
+					return false;
+				}
+				try {
+					this.wait( remaining );
+				} catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new FirebaseException( "interrupted while waiting for queue to drain", e );
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of writes queued but not yet drained.
+	 *
+	 * @return the number of pending writes
+	 */
+	public long getPendingCount() {
+		return this.pending.get();
+	}
+
+	/**
+	 * Returns the number of writes drained to Firebase.
+	 *
+	 * @return the number of drained writes
+	 */
+	public long getDrainedCount() {
+		return this.drained.get();
+	}
+
+	/**
+	 * Returns the number of writes Firebase rejected outright (ie: invalid data) or for longer than the retries
+	 * allow, which were logged and dropped.
+	 *
+	 * @return the number of dropped writes
+	 */
+	public long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Returns the number of requests made to drain the queue; fewer than the drained writes when batches fold.
+	 *
+	 * @return the number of requests
+	 */
+	public long getRequestCount() {
+		return this.requests.get();
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder result = new StringBuilder();
+
+		result.append( WriteAheadQueue.class.getSimpleName() + "[ " )
+				.append( "(Directory:" ).append( this.directory ).append( ") " )
+				.append( "(Pending:" ).append( this.pending.get() ).append( ") " )
+				.append( "(Drained:" ).append( this.drained.get() ).append( ") " )
+				.append( "(Dropped:" ).append( this.dropped.get() ).append( ") " )
+				.append( "(Requests:" ).append( this.requests.get() ).append( ") " )
+				.append( "]" );
+
+		return result.toString();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private void append( byte op, String path, String jsonData ) throws FirebaseException {
+
+		byte[] pathBytes = WriteAheadQueue.utf8( WriteAheadQueue.normalizePath(path) );
+		byte[] dataBytes = WriteAheadQueue.utf8( jsonData == null ? "" : jsonData );
+		int length = 1 + 4 + pathBytes.length + 4 + dataBytes.length;
+		int recordBytes = RECORD_HEADER_BYTES + length;
+		if( recordBytes + 4 > this.segmentBytes ) {
+			String msg = "write of " + recordBytes + " bytes is larger than a segment (" + this.segmentBytes + " bytes)";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate( length );
+		payload.put( op ).putInt( pathBytes.length ).put( pathBytes ).putInt( dataBytes.length ).put( dataBytes );
+		CRC32 crc = new CRC32();
+		crc.update( payload.array() );
+
+		synchronized( this ) {
+
+			if( this.closed ) {
+				String msg = "queue is closed";
+				LOGGER.error( msg );
+				throw new FirebaseException( msg );
+			}
+
+			// roll to a new segment if this one is full
+			if( this.writeOffset + recordBytes + 4 > this.segmentBytes ) {
+				if( (long) (this.segments.size() + 1) * this.segmentBytes > this.maxDiskBytes ) {
+					String msg = "queue is full (" + this.maxDiskBytes + " bytes); " + this.pending.get() + " writes pending";
+					LOGGER.error( msg );
+					throw new FirebaseException( msg );
+				}
+				Segment next = null;
+				try {
+					next = this.openSegment( this.writeSegment.id + 1 );
+				} catch( IOException e ) {
+					String msg = "unable to open new segment in: " + this.directory;
+					LOGGER.error( msg );
+					throw new FirebaseException( msg, e );
+				}
+				this.writeSegment.buffer.putInt( this.writeOffset, SEALED );
+				this.writeSegment = next;
+				this.writeOffset = 0;
+			}
+
+			// write the body first and the length last, so a torn record is never mistaken for a whole one
+			ByteBuffer buffer = this.writeSegment.buffer.duplicate();
+			buffer.position( this.writeOffset + 4 );
+			buffer.putInt( (int) crc.getValue() );
+			buffer.put( payload.array() );
+			this.writeSegment.buffer.putInt( this.writeOffset, length );
+			if( this.syncOnWrite ) {
+				this.writeSegment.buffer.force();
+			}
+
+			this.writeOffset += recordBytes;
+			this.pending.incrementAndGet();
+			this.notifyAll();
+		}
+	}
+
+	private void drain() {
+
+		long retryMillis = MIN_RETRY_MILLIS;
+		List<Record> batch = new ArrayList<Record>();
+		while( true ) {
+
+			try {
+
+				if( batch.isEmpty() && !this.readBatch( batch ) ) {
+					return; // closed
+				}
+
+				// send as much of the batch as folds into one request, retrying it until it goes through
+				int sent = this.send( batch );
+				if( sent == 0 ) {
+					this.sleep( retryMillis );
+					retryMillis = Math.min( MAX_RETRY_MILLIS, retryMillis * 2 );
+					continue;
+				}
+				retryMillis = MIN_RETRY_MILLIS;
+
+				Record last = batch.get( sent - 1 );
+				this.writeCheckpoint( last.segment, last.end );
+				batch.subList( 0, sent ).clear();
+
+				synchronized( this ) {
+					this.pending.addAndGet( -sent );
+					this.notifyAll();
+				}
+
+			} catch( InterruptedException e ) {
+				return;
+			} catch( Throwable t ) {
+				LOGGER.error( "unexpected error draining write-ahead queue", t );
+				try {
+					this.sleep( retryMillis );
+				} catch( InterruptedException e ) {
+					return;
+				}
+			}
+		}
+	}
+
+	/* blocks until at least one record is available; returns false if the queue closed */
+	private boolean readBatch( List<Record> batch ) throws InterruptedException {
+
+		int maxBatch = this.maxBatch;
+		synchronized( this ) {
+			while( !this.closed && this.readSegment == this.writeSegment && this.readOffset >= this.writeOffset ) {
+				this.wait();
+			}
+			if( this.closed ) {
+				return false;
+			}
+		}
+
+		while( batch.size() < maxBatch ) {
+
+			Segment segment;
+			int limit;
+			synchronized( this ) {
+				if( this.readSegment == this.writeSegment ) {
+					limit = this.writeOffset;
+				} else {
+					limit = this.segmentBytes;
+				}
+				segment = this.readSegment;
+			}
+			if( this.readOffset >= limit ) {
+				break;
+			}
+
+			int length = segment.buffer.getInt( this.readOffset );
+			if( length == SEALED ) {
+				synchronized( this ) {
+					this.readSegment = this.segments.higherEntry( segment.id ).getValue();
+				}
+				this.readOffset = 0;
+				continue;
+			}
+
+			Record record = WriteAheadQueue.readRecord( segment, this.readOffset, length );
+			batch.add( record );
+			this.readOffset = record.end;
+		}
+
+		return !batch.isEmpty();
+	}
+
+	/* sends the head of the batch; returns how many records it covered, or 0 to retry later */
+	private int send( List<Record> batch ) throws FirebaseException {
+
+		// fold the longest run of PUT/PATCH/DELETE that can go in one multi-path PATCH
+		Map<String, Object> update = new LinkedHashMap<String, Object>();
+		int count = 0;
+		while( count < batch.size() && batch.get(count).isFoldable() && !batch.get(count).unfold ) {
+			if( !WriteAheadQueue.fold( update, batch.get(count) ) ) {
+				break;
+			}
+			count++;
+		}
+
+		Record first = batch.get( 0 );
+		FirebaseResponse response = null;
+		try {
+
+			this.requests.incrementAndGet();
+			if( count > 1 ) {
+				response = this.firebase.writeIsolated( FirebaseRestMethod.PATCH, "", JacksonUtility.GET_JSON_STRING_FROM_MAP( update ) );
+			} else {
+				count = 1;
+				response = this.sendOne( first );
+			}
+
+		} catch( FirebaseException e ) {
+
+			LOGGER.warn( "unable to drain write to '" + first.path + "'; will retry: " + e.getMessage() );
+			return 0;
+
+		} catch( JacksonUtilityException e ) {
+
+			for( int i = 0; i < count; i++ ) {
+				batch.get( i ).unfold = true;
+			}
+			LOGGER.error( "unable to fold " + count + " writes; sending them one by one" );
+			return 0;
+
+		} catch( UnsupportedEncodingException e ) {
+
+			LOGGER.error( "unable to build url for '" + first.path + "'; dropping write", e );
+			this.dropped.incrementAndGet();
+			return 1;
+
+		}
+
+		int code = response.getCode();
+		if( response.getSuccess() ) {
+			this.drained.addAndGet( count );
+			return count;
+		}
+		// retry what may go through later, but not forever, or one bad write would block all behind it for good
+		if( response.isRetryable( first.attempts + 1 ) && first.attempts < this.maxRetries ) {
+			for( int i = 0; i < count; i++ ) {
+				batch.get( i ).attempts++;
+			}
+			LOGGER.warn( "write to '" + first.path + "' failed (" + code + "); will retry" );
+			return 0;
+		}
+
+		// rejected outright (or for too long); isolate the bad write if it was folded with others, otherwise drop it
+		if( count > 1 ) {
+			for( int i = 0; i < count; i++ ) {
+				batch.get( i ).unfold = true;
+				batch.get( i ).attempts = 0;
+			}
+			LOGGER.warn( "folded write of " + count + " records failed (" + code + "); sending them one by one" );
+			return 0;
+		}
+		LOGGER.error( "write to '" + first.path + "' rejected (" + code + ") after " + (first.attempts + 1) + " attempts; dropping it: " 
+				+ response.getRawBody() );
+		this.dropped.incrementAndGet();
+		return 1;
+	}
+
+	private FirebaseResponse sendOne( Record record ) throws FirebaseException, UnsupportedEncodingException {
+
+		switch( record.op ) {
+			case OP_PUT:
+				return this.firebase.writeIsolated( FirebaseRestMethod.PUT, record.path, record.data );
+			case OP_PATCH:
+				return this.firebase.writeIsolated( FirebaseRestMethod.PATCH, record.path, record.data );
+			case OP_POST:
+				// only found in logs written before posts were queued as PUTs
+				return this.firebase.writeIsolated( FirebaseRestMethod.POST, record.path, record.data );
+			default:
+				return this.firebase.writeIsolated( FirebaseRestMethod.DELETE, record.path, null );
+		}
+	}
+
+	/* adds the record to the multi-path update, unless one of its paths overlaps one already there */
+	@SuppressWarnings("unchecked")
+	private static boolean fold( Map<String, Object> update, Record record ) {
+
+		Map<String, Object> entries = new LinkedHashMap<String, Object>();
+		try {
+
+			if( record.op == OP_DELETE ) {
+				entries.put( record.path, null );
+			} else if( record.op == OP_PUT ) {
+				entries.put( record.path, JacksonUtility.GET_JSON_STRING_AS_OBJECT( record.data ) );
+			} else {
+				Object data = JacksonUtility.GET_JSON_STRING_AS_OBJECT( record.data );
+				if( !(data instanceof Map) ) {
+					return false; // let it go on its own, and fail there if it's bad
+				}
+				for( Map.Entry<String, Object> e : ((Map<String, Object>) data).entrySet() ) {
+					String key = WriteAheadQueue.normalizePath( e.getKey() );
+					entries.put( record.path.isEmpty() ? key : record.path + "/" + key, e.getValue() );
+				}
+			}
+
+		} catch( JacksonUtilityException e ) {
+			return false;
+		}
+
+		for( String key : entries.keySet() ) {
+			if( key.isEmpty() ) {
+				return false; // the root can't be part of a multi-path update
+			}
+			for( String existing : update.keySet() ) {
+				if( key.startsWith( existing + "/" ) || existing.startsWith( key + "/" ) ) {
+					return false;
+				}
+			}
+		}
+
+		// a later write to the same path replaces the earlier one, and moves to the end to keep order
+		for( Map.Entry<String, Object> e : entries.entrySet() ) {
+			update.remove( e.getKey() );
+			update.put( e.getKey(), e.getValue() );
+		}
+		return true;
+	}
+
+	private void recover() throws IOException {
+
+		// open the existing segments
+		File[] files = this.directory.listFiles( new FilenameFilter() {
+			@Override
+			public boolean accept( File dir, String name ) {
+				return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+			}
+		});
+		for( File file : files ) {
+			String name = file.getName();
+			try {
+				long id = Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+				this.openSegment( id );
+			} catch( NumberFormatException e ) {
+				LOGGER.warn( "ignoring unrecognized file in queue-directory: " + file );
+			}
+		}
+		if( this.segments.isEmpty() ) {
+			this.openSegment( 0 );
+		}
+
+		// find where draining left off
+		long checkpointSegment = this.checkpoint.getLong( 0 );
+		int checkpointOffset = this.checkpoint.getInt( 8 );
+		CRC32 crc = new CRC32();
+		crc.update( WriteAheadQueue.checkpointBytes( checkpointSegment, checkpointOffset ) );
+		if( (int) crc.getValue() != this.checkpoint.getInt( 12 ) || !this.segments.containsKey( checkpointSegment ) ) {
+			checkpointSegment = this.segments.firstKey();
+			checkpointOffset = 0;
+		}
+		for( Long id : new ArrayList<Long>( this.segments.headMap( checkpointSegment ).keySet() ) ) {
+			this.deleteSegment( id );
+		}
+		this.readSegment = this.segments.get( checkpointSegment );
+		this.readOffset = checkpointOffset;
+
+		// find the end of the log, counting what's pending and discarding any torn tail
+		Segment segment = this.readSegment;
+		int offset = this.readOffset;
+		while( true ) {
+			int length = offset + 4 <= this.segmentBytes ? segment.buffer.getInt( offset ) : 0;
+			if( length == SEALED && this.segments.higherKey( segment.id ) != null ) {
+				segment = this.segments.higherEntry( segment.id ).getValue();
+				offset = 0;
+				continue;
+			}
+			if( length <= 0 || !WriteAheadQueue.isValidRecord( segment, offset, length, this.segmentBytes ) ) {
+				break;
+			}
+			offset += RECORD_HEADER_BYTES + length;
+			this.pending.incrementAndGet();
+		}
+		for( int i = offset; i < this.segmentBytes; i++ ) {
+			if( segment.buffer.get( i ) != 0 ) {
+				LOGGER.warn( "discarding torn tail of segment " + segment.id + " from offset " + offset );
+				for( int j = offset; j < this.segmentBytes; j++ ) {
+					segment.buffer.put( j, (byte) 0 );
+				}
+				break;
+			}
+		}
+		for( Long id : new ArrayList<Long>( this.segments.tailMap( segment.id, false ).keySet() ) ) {
+			this.deleteSegment( id );
+		}
+		this.writeSegment = segment;
+		this.writeOffset = offset;
+	}
+
+	private void writeCheckpoint( Segment segment, int offset ) {
+
+		CRC32 crc = new CRC32();
+		crc.update( WriteAheadQueue.checkpointBytes( segment.id, offset ) );
+		this.checkpoint.putLong( 0, segment.id );
+		this.checkpoint.putInt( 8, offset );
+		this.checkpoint.putInt( 12, (int) crc.getValue() );
+
+		// segments before the checkpoint are fully drained
+		synchronized( this ) {
+			for( Long id : new ArrayList<Long>( this.segments.headMap( segment.id ).keySet() ) ) {
+				this.deleteSegment( id );
+			}
+		}
+	}
+
+	private Segment openSegment( long id ) throws IOException {
+
+		File file = new File( this.directory, String.format( "%s%019d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX ) );
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( this.segmentBytes );
+			Segment result = new Segment( id, file, raf, raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes ) );
+			this.segments.put( id, result );
+			return result;
+		} catch( IOException e ) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private void deleteSegment( long id ) {
+
+		Segment segment = this.segments.remove( id );
+		if( segment != null ) {
+			segment.close();
+			if( !segment.file.delete() ) {
+				LOGGER.warn( "unable to delete drained segment: " + segment.file );
+			}
+		}
+	}
+
+	private void sleep( long millis ) throws InterruptedException {
+
+		synchronized( this ) {
+			if( this.closed ) {
+				throw new InterruptedException( "queue closed" );
+			}
+		}
+		Thread.sleep( millis );
+	}
+
+	private static boolean isValidRecord( Segment segment, int offset, int length, int segmentBytes ) {
+
+		if( offset + RECORD_HEADER_BYTES + length > segmentBytes ) {
+			return false;
+		}
+		byte[] payload = new byte[length];
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position( offset + RECORD_HEADER_BYTES );
+		buffer.get( payload );
+		CRC32 crc = new CRC32();
+		crc.update( payload );
+		return (int) crc.getValue() == segment.buffer.getInt( offset + 4 );
+	}
+
+	private static Record readRecord( Segment segment, int offset, int length ) {
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position( offset + RECORD_HEADER_BYTES );
+		byte op = buffer.get();
+		byte[] path = new byte[buffer.getInt()];
+		buffer.get( path );
+		byte[] data = new byte[buffer.getInt()];
+		buffer.get( data );
+
+		return new Record( op, WriteAheadQueue.string( path ), WriteAheadQueue.string( data ), segment, offset + RECORD_HEADER_BYTES + length );
+	}
+
+	private static byte[] checkpointBytes( long segment, int offset ) {
+		return ByteBuffer.allocate( 12 ).putLong( segment ).putInt( offset ).array();
+	}
+
+	private static MappedByteBuffer map( File file, int size ) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( size );
+			return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size ); // stays valid once closed
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String normalizePath( String path ) {
+
+		if( path == null ) {
+			return "";
+		}
+		path = path.trim();
+		while( path.startsWith( "/" ) ) {
+			path = path.substring( 1 );
+		}
+		while( path.endsWith( "/" ) ) {
+			path = path.substring( 0, path.length() - 1 );
+		}
+		return path;
+	}
+
+	private static byte[] utf8( String s ) {
+
+		try {
+			return s.getBytes( "UTF-8" );
+		} catch( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e ); // UTF-8 is always supported
+		}
+	}
+
+	private static String string( byte[] utf8 ) {
+
+		try {
+			return new String( utf8, "UTF-8" );
+		} catch( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( e ); // UTF-8 is always supported
+		}
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private static class Segment {
+
+		final long id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+
+		Segment( long id, File file, RandomAccessFile raf, MappedByteBuffer buffer ) {
+			this.id = id;
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+
+		void close() {
+			try {
+				this.raf.close();
+			} catch( IOException e ) {
+				LOGGER.warn( "unable to close segment: " + this.file );
+			}
+		}
+	}
+
+	private static class Record {
+
+		final byte op;
+		final String path;
+		final String data;
+		final Segment segment;
+		final int end;
+		boolean unfold = false;
+		int attempts = 0;
+
+		Record( byte op, String path, String data, Segment segment, int end ) {
+			this.op = op;
+			this.path = path;
+			this.data = data;
+			this.segment = segment;
+			this.end = end;
+		}
+
+		boolean isFoldable() {
+			return this.op != OP_POST;
+		}
+	}
+
+}
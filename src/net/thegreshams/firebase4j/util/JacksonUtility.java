@@ -7,6 +7,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.CompactJsonTree;
 
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -100,6 +101,77 @@ public class JacksonUtility {
 		return result;
 	}
 	
+	/**
+	 * Creates a json-string representing any value Jackson can bind (ie: a Map, List, String, Number,
+	 * Boolean or null).
+	 * 
+	 * @param data; can be null, which results in the json-literal 'null'
+	 * @return the json-string representing the data; will not return null
+	 * @throws JacksonUtilityException if there was an error converting the data into a json-string
+	 */
+	public static String GET_JSON_STRING_FROM_OBJECT( Object data ) throws JacksonUtilityException {
+		
+		Writer writer = new StringWriter();		
+		try {
+		
+			ObjectMapper mapper = new ObjectMapper();
+			mapper.writeValue( writer, data );
+			
+		} catch( Throwable t ) {
+			
+			String msg = "unable to convert data into json: " + data;
+			LOGGER.warn( msg );
+			throw new JacksonUtilityException( msg, t );
+			
+		}
+		
+		return writer.toString();
+	}
+	
+	/**
+	 * Creates the value represented by the json-data provided, whatever its type (unlike 
+	 * {@link #GET_JSON_STRING_AS_MAP(String)}, which only accepts json-objects).
+	 * 
+	 * @param jsonResponse; can be null/empty, but will result in null
+	 * @return a Map, List, String, Number, Boolean, or null
+	 * @throws JacksonUtilityException if there was an error converting the json-string
+	 */
+	public static Object GET_JSON_STRING_AS_OBJECT( String jsonResponse ) throws JacksonUtilityException {
+		
+		if( jsonResponse == null || jsonResponse.trim().isEmpty() ) {
+			return null;
+		}
+		
+		Object result = null;
+		try {
+			
+			ObjectMapper mapper = new ObjectMapper();
+			result = mapper.readValue( jsonResponse.trim(), Object.class );
+			
+		} catch( Throwable t ) {
+			
+			String msg = "unable to map json-response: " + jsonResponse; 
+			LOGGER.error( msg );
+			throw new JacksonUtilityException( msg, t );
+			
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Creates a compact, read-only tree represented by the json-data provided.
+	 * 
+	 * @param jsonResponse; can be null/empty, but will result in a tree holding a single null;
+	 * @return a {@link CompactJsonTree}; will not return null
+	 * 
+	 * @throws JacksonUtilityException if there was an error parsing the json-string
+	 */
+	public static CompactJsonTree GET_JSON_STRING_AS_COMPACT_TREE( String jsonResponse ) throws JacksonUtilityException {
+		
+		return new CompactJsonTree( jsonResponse );
+	}
+	
 }
 
 
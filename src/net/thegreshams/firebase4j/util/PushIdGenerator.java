@@ -0,0 +1,149 @@
+package net.thegreshams.firebase4j.util;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates push-ids on the client, the same shape as the keys Firebase generates for a POST: 8 characters
+ * of millisecond timestamp followed by 12 random characters, drawn from an alphabet that sorts the same in
+ * ASCII as in time. Ids are therefore lexicographically ordered by when they were generated.
+ *
+ * Ids are strictly increasing for a generator: within a millisecond (or if the clock goes backwards) the
+ * previous id's random part is incremented instead of drawn again. Generation is lock-free and safe across
+ * threads; all threads should share one generator (ie: {@link #NEXT_PUSH_ID()}) to keep that ordering.
+ */
+public class PushIdGenerator {
+
+	/* ascending in ASCII, so ids sort as their timestamps and counters do */
+	private static final String				PUSH_CHARS				= "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+	/* each half of the random part is 6 characters of 6 bits */
+	private static final long				HALF_LIMIT				= 1L << 36;
+
+	private static final PushIdGenerator	DEFAULT					= new PushIdGenerator();
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Random random = new SecureRandom();
+	private final AtomicReference<State> last = new AtomicReference<State>( new State(0, 0, 0) );
+
+	public PushIdGenerator() {
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Generates a push-id from the generator shared by the whole process.
+	 *
+	 * @return a 20-character push-id
+	 */
+	public static String NEXT_PUSH_ID() {
+		return DEFAULT.next();
+	}
+
+	/**
+	 * Generates a push-id, greater than any this generator returned before.
+	 *
+	 * @return a 20-character push-id
+	 */
+	public String next() {
+
+		State previous;
+		State next;
+		do {
+
+			previous = this.last.get();
+			long now = System.currentTimeMillis();
+			if( now > previous.time ) {
+
+				next = new State( now, this.nextRandomHalf(), this.nextRandomHalf() );
+
+			} else if( previous.low + 1 < HALF_LIMIT ) {
+
+				next = new State( previous.time, previous.high, previous.low + 1 );
+
+			} else if( previous.high + 1 < HALF_LIMIT ) {
+
+				next = new State( previous.time, previous.high + 1, 0 );
+
+			} else {
+
+				// 2^72 ids in one millisecond; borrow the next one
+				next = new State( previous.time + 1, 0, 0 );
+
+			}
+
+		} while( !this.last.compareAndSet( previous, next ) );
+
+		return next.toPushId();
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/* leaves headroom below the limit so ids generated within a millisecond rarely carry */
+	private long nextRandomHalf() {
+		return (this.random.nextLong() >>> 28) & (HALF_LIMIT / 2 - 1);
+	}
+
+	private static void append( char[] chars, int offset, int length, long value ) {
+
+		for( int i = offset + length - 1; i >= offset; i-- ) {
+			chars[i] = PUSH_CHARS.charAt( (int) (value & 63) );
+			value >>>= 6;
+		}
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private static class State {
+
+		final long time;
+		final long high;
+		final long low;
+
+		State( long time, long high, long low ) {
+			this.time = time;
+			this.high = high;
+			this.low = low;
+		}
+
+		String toPushId() {
+
+			char[] result = new char[20];
+			PushIdGenerator.append( result, 0, 8, this.time );
+			PushIdGenerator.append( result, 8, 6, this.high );
+			PushIdGenerator.append( result, 14, 6, this.low );
+			return new String( result );
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package net.thegreshams.firebase4j.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.annotate.JsonValue;
+
+/**
+ * A placeholder resolved by the Firebase service when the data is written, such as the server's time.
+ *
+ * Put one in the data handed to any write (ie: as a value of the map to {@link net.thegreshams.firebase4j.service.Firebase#put(String, Map)})
+ * and {@link JacksonUtility} serializes it to the service's '.sv' form.
+ */
+public final class ServerValue {
+
+	/**
+	 * Resolves to the service's time, in milliseconds since the epoch; serializes to {".sv":"timestamp"}
+	 */
+	public static final ServerValue			TIMESTAMP				= new ServerValue( "timestamp" );
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private final Map<String, Object> value;
+
+	private ServerValue( Object sv ) {
+
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put( ".sv", sv );
+		this.value = Collections.unmodifiableMap( value );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Resolves to the current value plus delta (or to delta, if there is no current value), applied
+	 * atomically by the service; serializes to {".sv":{"increment":delta}}
+	 *
+	 * @param delta -- may be negative
+	 * @return {@link ServerValue}
+	 */
+	public static ServerValue INCREMENT( long delta ) {
+		return new ServerValue( Collections.singletonMap("increment", delta) );
+	}
+
+	/**
+	 * See {@link #INCREMENT(long)}.
+	 *
+	 * @param delta -- may be negative
+	 * @return {@link ServerValue}
+	 */
+	public static ServerValue INCREMENT( double delta ) {
+		return new ServerValue( Collections.singletonMap("increment", delta) );
+	}
+
+	/**
+	 * Returns the value as written to the service
+	 *
+	 * @return an unmodifiable map holding the single key '.sv'
+	 */
+	@JsonValue
+	public Map<String, Object> getValue() {
+		return this.value;
+	}
+
+	@Override
+	public boolean equals( Object o ) {
+		return o instanceof ServerValue && this.value.equals( ((ServerValue) o).value );
+	}
+
+	@Override
+	public int hashCode() {
+		return this.value.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return ServerValue.class.getSimpleName() + "[ " + this.value + " ]";
+	}
+
+}
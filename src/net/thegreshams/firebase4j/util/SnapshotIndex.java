@@ -0,0 +1,708 @@
+package net.thegreshams.firebase4j.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import net.thegreshams.firebase4j.service.Firebase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Client-side secondary indexes over the children of a fetched subtree.
+ *
+ * A snapshot is the map of child-key to child-value returned by a GET (ie: {@link FirebaseResponse#getBody()}).
+ * Indexes are built on a child-field (a '/'-separated path relative to each child) and answer range, equality
+ * and top-K queries without walking the nested maps again. Values are ordered the way Firebase orders them:
+ * missing/null, false, true, numbers, strings, then objects; ties are broken by child-key in
+ * {@link Firebase#KEY_ORDER} (32-bit integer keys numerically, then the rest as strings).
+ *
+ * Instances are not thread-safe; the snapshot handed in is referenced, not copied, and must not be modified.
+ */
+public class SnapshotIndex {
+
+	protected static final Logger 			LOGGER 					= Logger.getRootLogger();
+
+	/* if more than 1/REBUILD_RATIO of an index changes on refresh, it's cheaper to just re-sort it */
+	private static final int				REBUILD_RATIO			= 8;
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PROPERTIES & CONSTRUCTORS
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private Map<String, Object> snapshot;
+	private final Map<String, SortedIndex> sortedIndexes = new LinkedHashMap<String, SortedIndex>();
+	private final Map<String, HashIndex> hashIndexes = new LinkedHashMap<String, HashIndex>();
+
+	public SnapshotIndex( Map<String, Object> snapshot ) {
+
+		if( snapshot == null ) {
+			LOGGER.info( "snapshot was null; replacing with empty map" );
+			snapshot = new LinkedHashMap<String, Object>();
+		}
+		this.snapshot = snapshot;
+	}
+
+	public SnapshotIndex( FirebaseResponse response ) throws FirebaseException {
+
+		this( SnapshotIndex.bodyOf( response ) );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PUBLIC API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Builds (or rebuilds) a sorted-array index on the provided child-field; supports range, equality and
+	 * top-K queries.
+	 *
+	 * @param field -- '/'-separated path relative to each child; if null/empty, the child-value itself
+	 * @return SnapshotIndex -- return this SnapshotIndex object
+	 */
+	public SnapshotIndex addSortedIndex( String field ) {
+
+		SortedIndex index = new SortedIndex( SnapshotIndex.splitField( field ) );
+		index.build( this.snapshot );
+		this.sortedIndexes.put( SnapshotIndex.normalizeField( field ), index );
+		return this;
+	}
+
+	/**
+	 * Builds (or rebuilds) a hash index on the provided child-field; supports equality queries only.
+	 *
+	 * @param field -- '/'-separated path relative to each child; if null/empty, the child-value itself
+	 * @return SnapshotIndex -- return this SnapshotIndex object
+	 */
+	public SnapshotIndex addHashIndex( String field ) {
+
+		HashIndex index = new HashIndex( SnapshotIndex.splitField( field ) );
+		index.build( this.snapshot );
+		this.hashIndexes.put( SnapshotIndex.normalizeField( field ), index );
+		return this;
+	}
+
+	/**
+	 * Returns the keys of the children whose field lies within [start, end], in index-order.
+	 *
+	 * @param field -- must have a sorted index
+	 * @param start -- inclusive; if null, the range is open at the start
+	 * @param end -- inclusive; if null, the range is open at the end
+	 * @return the matching child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no sorted index
+	 */
+	public List<String> range( String field, Object start, Object end ) throws FirebaseException {
+
+		SortedIndex index = this.getSortedIndex( field );
+		int from = start == null ? 0 : index.lowerBound( start );
+		int to = end == null ? index.size : index.upperBound( end );
+		return index.keys( from, to, false );
+	}
+
+	/**
+	 * Returns the keys of the children whose field is at or after the provided value, in index-order.
+	 *
+	 * @param field -- must have a sorted index
+	 * @param start -- inclusive
+	 * @return the matching child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no sorted index
+	 */
+	public List<String> startAt( String field, Object start ) throws FirebaseException {
+		return this.range( field, start, null );
+	}
+
+	/**
+	 * Returns the keys of the children whose field is at or before the provided value, in index-order.
+	 *
+	 * @param field -- must have a sorted index
+	 * @param end -- inclusive
+	 * @return the matching child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no sorted index
+	 */
+	public List<String> endAt( String field, Object end ) throws FirebaseException {
+		return this.range( field, null, end );
+	}
+
+	/**
+	 * Returns the keys of the children whose field equals the provided value. Uses the hash index when there
+	 * is one (keys in no particular order), otherwise the sorted index (keys in child-key order).
+	 *
+	 * Numbers compare by value, so 1 and 1.0 are equal.
+	 *
+	 * @param field -- must have a hash or sorted index
+	 * @param value -- can be null, which matches children missing the field
+	 * @return the matching child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no index
+	 */
+	public List<String> equalTo( String field, Object value ) throws FirebaseException {
+
+		HashIndex hashIndex = this.hashIndexes.get( SnapshotIndex.normalizeField(field) );
+		if( hashIndex != null ) {
+			return hashIndex.get( value );
+		}
+
+		SortedIndex index = this.getSortedIndex( field );
+		return index.equalTo( value );
+	}
+
+	/**
+	 * Returns the keys of the first k children by field, in index-order.
+	 *
+	 * @param field -- must have a sorted index
+	 * @param k -- number of keys to return
+	 * @return at most k child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no sorted index
+	 */
+	public List<String> limitToFirst( String field, int k ) throws FirebaseException {
+
+		SortedIndex index = this.getSortedIndex( field );
+		return index.keys( 0, Math.min( Math.max(k, 0), index.size ), false );
+	}
+
+	/**
+	 * Returns the keys of the last k children by field (ie: top-K), highest first.
+	 *
+	 * @param field -- must have a sorted index
+	 * @param k -- number of keys to return
+	 * @return at most k child-keys; will not return null
+	 * @throws {@link FirebaseException} if the field has no sorted index
+	 */
+	public List<String> limitToLast( String field, int k ) throws FirebaseException {
+
+		SortedIndex index = this.getSortedIndex( field );
+		return index.keys( index.size - Math.min( Math.max(k, 0), index.size ), index.size, true );
+	}
+
+	/**
+	 * Returns the value of the child with the provided key.
+	 *
+	 * @param key -- child-key
+	 * @return the child-value, or null if there is none
+	 */
+	public Object getChild( String key ) {
+		return this.snapshot.get( key );
+	}
+
+	/**
+	 * Returns the snapshot the indexes were built over.
+	 *
+	 * @return a map of child-keys to child-values
+	 */
+	public Map<String, Object> getSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Returns the number of children in the snapshot.
+	 *
+	 * @return the number of children
+	 */
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	/**
+	 * Replaces the snapshot and brings every index up-to-date. Only children whose indexed field was added,
+	 * changed or removed are re-indexed; an index is rebuilt from scratch only when a large part of it changed.
+	 *
+	 * @param snapshot -- the refreshed snapshot; if null, treated as empty
+	 * @return the number of index-entries that changed, summed over all indexes
+	 */
+	public int refresh( Map<String, Object> snapshot ) {
+
+		if( snapshot == null ) {
+			LOGGER.info( "snapshot was null; replacing with empty map" );
+			snapshot = new LinkedHashMap<String, Object>();
+		}
+		this.snapshot = snapshot;
+
+		int changed = 0;
+		for( SortedIndex index : this.sortedIndexes.values() ) {
+			changed += index.refresh( snapshot );
+		}
+		for( HashIndex index : this.hashIndexes.values() ) {
+			changed += index.refresh( snapshot );
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Replaces the snapshot with the body of the provided response; see {@link #refresh(Map)}.
+	 *
+	 * @param response -- the refreshed response
+	 * @return the number of index-entries that changed, summed over all indexes
+	 * @throws {@link FirebaseException} if the response is null
+	 */
+	public int refresh( FirebaseResponse response ) throws FirebaseException {
+		return this.refresh( SnapshotIndex.bodyOf( response ) );
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// PRIVATE API
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	private SortedIndex getSortedIndex( String field ) throws FirebaseException {
+
+		SortedIndex result = this.sortedIndexes.get( SnapshotIndex.normalizeField(field) );
+		if( result == null ) {
+			String msg = "no sorted index on field '" + field + "'";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		return result;
+	}
+
+	private static Map<String, Object> bodyOf( FirebaseResponse response ) throws FirebaseException {
+
+		if( response == null ) {
+			String msg = "response cannot be null";
+			LOGGER.error( msg );
+			throw new FirebaseException( msg );
+		}
+
+		return response.getBody();
+	}
+
+	private static String normalizeField( String field ) {
+
+		StringBuilder result = new StringBuilder();
+		for( String part : SnapshotIndex.splitField(field) ) {
+			if( result.length() > 0 ) {
+				result.append( '/' );
+			}
+			result.append( part );
+		}
+
+		return result.toString();
+	}
+
+	private static String[] splitField( String field ) {
+
+		List<String> result = new ArrayList<String>();
+		if( field != null ) {
+			for( String part : field.trim().split( "/" ) ) {
+				if( !part.isEmpty() ) {
+					result.add( part );
+				}
+			}
+		}
+
+		return result.toArray( new String[result.size()] );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object extract( Object child, String[] field ) {
+
+		Object result = child;
+		for( String part : field ) {
+			if( !(result instanceof Map) ) {
+				return null;
+			}
+			result = ((Map<String, Object>) result).get( part );
+		}
+
+		return result;
+	}
+
+	private static boolean sameValue( Object a, Object b ) {
+
+		if( a == b ) {
+			return true;
+		}
+		if( a instanceof Number && b instanceof Number ) {
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		}
+		return a != null && a.equals( b );
+	}
+
+	/* Firebase's ordering of value-types: null, false, true, numbers, strings, objects */
+	private static byte rankOf( Object value ) {
+
+		if( value == null ) 				return 0;
+		if( Boolean.FALSE.equals(value) )	return 1;
+		if( Boolean.TRUE.equals(value) ) 	return 2;
+		if( value instanceof Number ) 		return 3;
+		if( value instanceof String ) 		return 4;
+		return 5;
+	}
+
+	/* numbers are keyed by their double value so that Integer 1, Long 1 and Double 1.0 are equal */
+	private static Object hashKeyOf( Object value ) {
+
+		if( value instanceof Number ) {
+			double d = ((Number) value).doubleValue();
+			return Long.valueOf( Double.doubleToLongBits( d == 0.0 ? 0.0 : d ) );
+		}
+		if( value instanceof String || value instanceof Boolean || value == null ) {
+			return value;
+		}
+		return Integer.valueOf( 5 ); // objects/arrays all fall into a single bucket
+	}
+
+
+
+///////////////////////////////////////////////////////////////////////////////
+//
+// INTERNAL CLASSES
+//
+///////////////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * Children sorted by (rank, number|string, key), held in parallel primitive arrays.
+	 */
+	private static class SortedIndex {
+
+		private final String[] field;
+		private final Map<String, Object> values = new HashMap<String, Object>();
+
+		private int size;
+		private byte[] ranks = new byte[0];
+		private double[] numbers = new double[0];
+		private String[] strings = new String[0];
+		private String[] keys = new String[0];
+
+		SortedIndex( String[] field ) {
+			this.field = field;
+		}
+
+		List<String> equalTo( Object value ) {
+
+			List<String> keys = this.keys( this.lowerBound(value), this.upperBound(value), false );
+
+			// objects/arrays all compare equal to each other, so filter them by actual equality
+			if( SnapshotIndex.rankOf(value) != 5 ) {
+				return keys;
+			}
+			List<String> result = new ArrayList<String>( keys.size() );
+			for( String key : keys ) {
+				if( value.equals( this.values.get(key) ) ) {
+					result.add( key );
+				}
+			}
+			return result;
+		}
+
+		void build( Map<String, Object> snapshot ) {
+
+			this.values.clear();
+			Entry[] entries = new Entry[snapshot.size()];
+			int i = 0;
+			for( Map.Entry<String, Object> child : snapshot.entrySet() ) {
+				Object value = SnapshotIndex.extract( child.getValue(), this.field );
+				this.values.put( child.getKey(), value );
+				entries[i++] = new Entry( child.getKey(), value );
+			}
+			Arrays.sort( entries );
+
+			this.allocate( entries.length );
+			for( Entry e : entries ) {
+				this.append( e );
+			}
+		}
+
+		int refresh( Map<String, Object> snapshot ) {
+
+			// find the children whose indexed value was added, changed or removed
+			Set<String> stale = new HashSet<String>();
+			List<Entry> fresh = new ArrayList<Entry>();
+			for( Map.Entry<String, Object> child : snapshot.entrySet() ) {
+				Object value = SnapshotIndex.extract( child.getValue(), this.field );
+				boolean known = this.values.containsKey( child.getKey() );
+				Object previous = this.values.put( child.getKey(), value );
+				if( !known || !SnapshotIndex.sameValue( previous, value ) ) {
+					if( known ) {
+						stale.add( child.getKey() );
+					}
+					fresh.add( new Entry( child.getKey(), value ) );
+				}
+			}
+			if( this.values.size() > snapshot.size() ) {
+				for( String key : this.keys ) {
+					if( key != null && !snapshot.containsKey(key) ) {
+						stale.add( key );
+						this.values.remove( key );
+					}
+				}
+			}
+
+			int changed = stale.size() + fresh.size();
+			if( changed == 0 ) {
+				return 0;
+			}
+			if( changed * REBUILD_RATIO > this.size ) {
+				this.build( snapshot );
+				return changed;
+			}
+
+			// merge the surviving entries with the sorted fresh ones
+			Entry[] additions = fresh.toArray( new Entry[fresh.size()] );
+			Arrays.sort( additions );
+
+			int oldSize = this.size;
+			byte[] oldRanks = this.ranks;
+			double[] oldNumbers = this.numbers;
+			String[] oldStrings = this.strings;
+			String[] oldKeys = this.keys;
+			this.allocate( oldSize - stale.size() + additions.length );
+
+			int a = 0;
+			for( int i = 0; i < oldSize; i++ ) {
+				if( stale.contains( oldKeys[i] ) ) {
+					continue;
+				}
+				while( a < additions.length
+					&& additions[a].compareTo( oldRanks[i], oldNumbers[i], oldStrings[i], oldKeys[i] ) < 0 )
+				{
+					this.append( additions[a++] );
+				}
+				this.appendRaw( oldRanks[i], oldNumbers[i], oldStrings[i], oldKeys[i] );
+			}
+			while( a < additions.length ) {
+				this.append( additions[a++] );
+			}
+
+			return changed;
+		}
+
+		/* first position whose value is >= the provided value */
+		int lowerBound( Object value ) {
+
+			Entry probe = new Entry( null, value );
+			int lo = 0, hi = this.size;
+			while( lo < hi ) {
+				int mid = (lo + hi) >>> 1;
+				if( probe.compareValue( this.ranks[mid], this.numbers[mid], this.strings[mid] ) > 0 ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/* first position whose value is > the provided value */
+		int upperBound( Object value ) {
+
+			Entry probe = new Entry( null, value );
+			int lo = 0, hi = this.size;
+			while( lo < hi ) {
+				int mid = (lo + hi) >>> 1;
+				if( probe.compareValue( this.ranks[mid], this.numbers[mid], this.strings[mid] ) >= 0 ) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		List<String> keys( int from, int to, boolean reversed ) {
+
+			if( from >= to ) {
+				return Collections.emptyList();
+			}
+			List<String> result = new ArrayList<String>( to - from );
+			if( reversed ) {
+				for( int i = to - 1; i >= from; i-- ) {
+					result.add( this.keys[i] );
+				}
+			} else {
+				for( int i = from; i < to; i++ ) {
+					result.add( this.keys[i] );
+				}
+			}
+			return result;
+		}
+
+		private void allocate( int capacity ) {
+
+			this.size = 0;
+			this.ranks = new byte[capacity];
+			this.numbers = new double[capacity];
+			this.strings = new String[capacity];
+			this.keys = new String[capacity];
+		}
+
+		private void append( Entry e ) {
+			this.appendRaw( e.rank, e.number, e.string, e.key );
+		}
+
+		private void appendRaw( byte rank, double number, String string, String key ) {
+
+			this.ranks[this.size] = rank;
+			this.numbers[this.size] = number;
+			this.strings[this.size] = string;
+			this.keys[this.size] = key;
+			this.size++;
+		}
+	}
+
+	/**
+	 * Index-entry used while sorting/merging and as a search-probe.
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		final String key;
+		final byte rank;
+		final double number;
+		final String string;
+
+		Entry( String key, Object value ) {
+
+			this.key = key;
+			this.rank = SnapshotIndex.rankOf( value );
+			this.number = value instanceof Number ? ((Number) value).doubleValue() : 0;
+			this.string = value instanceof String ? (String) value : null;
+		}
+
+		int compareValue( byte rank, double number, String string ) {
+
+			if( this.rank != rank ) {
+				return this.rank < rank ? -1 : 1;
+			}
+			if( rank == 3 ) {
+				return Double.compare( this.number, number );
+			}
+			if( rank == 4 ) {
+				return this.string.compareTo( string );
+			}
+			return 0;
+		}
+
+		int compareTo( byte rank, double number, String string, String key ) {
+
+			int result = this.compareValue( rank, number, string );
+			return result != 0 ? result : Firebase.KEY_ORDER.compare( this.key, key );
+		}
+
+		@Override
+		public int compareTo( Entry other ) {
+			return this.compareTo( other.rank, other.number, other.string, other.key );
+		}
+	}
+
+	/**
+	 * Equality index; numeric values are keyed by the bits of their double value.
+	 */
+	private static class HashIndex {
+
+		private final String[] field;
+		private final Map<String, Object> values = new HashMap<String, Object>();
+		private final Map<Object, Set<String>> buckets = new HashMap<Object, Set<String>>();
+
+		HashIndex( String[] field ) {
+			this.field = field;
+		}
+
+		void build( Map<String, Object> snapshot ) {
+
+			this.values.clear();
+			this.buckets.clear();
+			for( Map.Entry<String, Object> child : snapshot.entrySet() ) {
+				Object value = SnapshotIndex.extract( child.getValue(), this.field );
+				this.values.put( child.getKey(), value );
+				this.bucket( value ).add( child.getKey() );
+			}
+		}
+
+		int refresh( Map<String, Object> snapshot ) {
+
+			int changed = 0;
+			for( Map.Entry<String, Object> child : snapshot.entrySet() ) {
+				Object value = SnapshotIndex.extract( child.getValue(), this.field );
+				boolean known = this.values.containsKey( child.getKey() );
+				Object previous = this.values.put( child.getKey(), value );
+				if( known && SnapshotIndex.sameValue( previous, value ) ) {
+					continue;
+				}
+				if( known ) {
+					this.unbucket( previous, child.getKey() );
+				}
+				this.bucket( value ).add( child.getKey() );
+				changed++;
+			}
+			if( this.values.size() > snapshot.size() ) {
+				List<String> removed = new ArrayList<String>();
+				for( String key : this.values.keySet() ) {
+					if( !snapshot.containsKey(key) ) {
+						removed.add( key );
+					}
+				}
+				for( String key : removed ) {
+					this.unbucket( this.values.remove(key), key );
+					changed++;
+				}
+			}
+
+			return changed;
+		}
+
+		List<String> get( Object value ) {
+
+			Set<String> keys = this.buckets.get( SnapshotIndex.hashKeyOf(value) );
+			if( keys == null ) {
+				return Collections.emptyList();
+			}
+
+			// objects/arrays share a bucket, so filter them by actual equality
+			List<String> result = new ArrayList<String>( keys.size() );
+			boolean exact = SnapshotIndex.rankOf( value ) != 5;
+			for( String key : keys ) {
+				if( exact || value.equals( this.values.get(key) ) ) {
+					result.add( key );
+				}
+			}
+			return result;
+		}
+
+		private Set<String> bucket( Object value ) {
+
+			Object hashKey = SnapshotIndex.hashKeyOf( value );
+			Set<String> result = this.buckets.get( hashKey );
+			if( result == null ) {
+				result = new LinkedHashSet<String>();
+				this.buckets.put( hashKey, result );
+			}
+			return result;
+		}
+
+		private void unbucket( Object value, String key ) {
+
+			Object hashKey = SnapshotIndex.hashKeyOf( value );
+			Set<String> keys = this.buckets.get( hashKey );
+			if( keys != null ) {
+				keys.remove( key );
+				if( keys.isEmpty() ) {
+					this.buckets.remove( hashKey );
+				}
+			}
+		}
+	}
+
+}